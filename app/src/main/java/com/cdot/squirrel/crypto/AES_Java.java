@@ -10,6 +10,7 @@ import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -19,43 +20,66 @@ import javax.crypto.spec.SecretKeySpec;
  */
 public class AES_Java extends Aes {
 
-    @Override
-    byte[] encrypt(byte[] plaintext, String pass, int nBits) {
-        try {
-            byte[] pwBytes = makeKey(pass, nBits);
-            SecretKey key = new SecretKeySpec(pwBytes, "AES");
-            Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
-            // Construct new IV
-            byte[] iv = getIVBytes(cipher.getParameters().getParameterSpec(IvParameterSpec.class).getIV());
-            cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+    @Override // Aes
+    PreparedKey prepareKey(byte[] keyBytes) {
+        return new PreparedKey(keyBytes) {
+            @Override // PreparedKey
+            Ctr makeCtr(byte[] counterBlock) {
+                try {
+                    SecretKey key = new SecretKeySpec(mKey, "AES");
+                    Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+                    // CTR is symmetric, so the same keystream serves to encrypt and decrypt
+                    cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(counterBlock));
+                    return (in, inOff, len, out, outOff) -> {
+                        try {
+                            cipher.update(in, inOff, len, out, outOff);
+                        } catch (ShortBufferException sbe) {
+                            throw new Error("Stream cipher failed " + sbe);
+                        }
+                    };
+                } catch (InvalidKeyException | InvalidAlgorithmParameterException | NoSuchPaddingException
+                        | NoSuchAlgorithmException e) {
+                    throw new Error("Could not make stream cipher " + e);
+                }
+            }
 
-            byte[] ciphertext = cipher.doFinal(plaintext);
-            return makeFinal(iv, ciphertext);
-        } catch (InvalidKeyException | InvalidAlgorithmParameterException | NoSuchPaddingException
-                | NoSuchAlgorithmException | InvalidParameterSpecException | BadPaddingException
-                | IllegalBlockSizeException e) {
-            e.printStackTrace();
-            //assertTrue(e.getMessage(), false);
-            return null;
-        }
-    }
+            @Override // PreparedKey
+            protected byte[] encryptBytes(byte[] plaintext) {
+                try {
+                    SecretKey key = new SecretKeySpec(mKey, "AES");
+                    Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+                    // Construct new IV
+                    byte[] iv = getIVBytes(cipher.getParameters().getParameterSpec(IvParameterSpec.class).getIV());
+                    cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+
+                    byte[] ciphertext = cipher.doFinal(plaintext);
+                    return makeFinal(iv, ciphertext);
+                } catch (InvalidKeyException | InvalidAlgorithmParameterException | NoSuchPaddingException
+                        | NoSuchAlgorithmException | InvalidParameterSpecException | BadPaddingException
+                        | IllegalBlockSizeException e) {
+                    e.printStackTrace();
+                    //assertTrue(e.getMessage(), false);
+                    return null;
+                }
+            }
 
-    @Override
-    byte[] decrypt(byte[] ciphertext, String pass, int nBits) {
-        try {
-            byte[] pwBytes = makeKey(pass, nBits);
-            SecretKey key = new SecretKeySpec(pwBytes, "AES");
-            byte[] ivBytes = getIVBytes(ciphertext);
-            Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
-            cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(ivBytes));
-            return cipher.doFinal(getDataBytes(ciphertext));
-        } catch (IllegalBlockSizeException | BadPaddingException | InvalidKeyException
-                | InvalidAlgorithmParameterException
-                | NoSuchPaddingException
-                | NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            //assertTrue(e.getMessage(), false);
-            return null;
-        }
+            @Override // PreparedKey
+            protected byte[] decryptBytes(byte[] ciphertext) {
+                try {
+                    SecretKey key = new SecretKeySpec(mKey, "AES");
+                    byte[] ivBytes = getIVBytes(ciphertext);
+                    Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+                    cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(ivBytes));
+                    return cipher.doFinal(getDataBytes(ciphertext));
+                } catch (IllegalBlockSizeException | BadPaddingException | InvalidKeyException
+                        | InvalidAlgorithmParameterException
+                        | NoSuchPaddingException
+                        | NoSuchAlgorithmException e) {
+                    e.printStackTrace();
+                    //assertTrue(e.getMessage(), false);
+                    return null;
+                }
+            }
+        };
     }
 }
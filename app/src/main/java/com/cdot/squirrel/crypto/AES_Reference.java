@@ -1,6 +1,6 @@
 package com.cdot.squirrel.crypto;
 
-import java.util.Date;
+import java.util.Arrays;
 
 /**
  * Reference implementation of counter-mode AES_Reference, based on
@@ -23,14 +23,11 @@ public class AES_Reference extends Aes {
      * outtext blocks
 
      * @param intext    - Plaintext to be encrypted/ Ciphertext to be decrypted, as byte array.
-     * @param key          - Key to be used to encrypt/decrypt.
+     * @param keySchedule  - Expansion of the key to be used to encrypt/decrypt.
      * @param counterBlock - Initial 16-byte CTR counter block (with nonce & 0 counter).
      * @return Ciphertext as byte array.
      */
-    private static byte[] nist(byte[] intext, byte[] key, byte[] counterBlock) {
-        // generate key schedule - an expansion of the key into distinct Key Rounds for each round
-        byte[][] keySchedule = keyExpansion(key);
-
+    private static byte[] nist(byte[] intext, byte[][] keySchedule, byte[] counterBlock) {
         int blockCount = (int) Math.ceil(1.0 * intext.length / BLOCK_SIZE);
         byte[] outtext = new byte[intext.length];
 
@@ -47,52 +44,49 @@ public class AES_Reference extends Aes {
             }
 
             // increment counter block (counter in 2nd 8 bytes of counter block, big-endian)
-            // &FF to convert unsigned byte to int
-            int t = (counterBlock[BLOCK_SIZE - 1] & 0xFF) + 1;
-            // and propagate carry digits
-            for (int i = BLOCK_SIZE - 1; i >= 8; i--) {
-                counterBlock[i] = (byte) (t & 0xFF);
-                t = counterBlock[i - 1] + ((t >> 8) & 1);
-            }
+            incrementCounter(counterBlock);
         }
 
         return outtext;
     }
 
-    @Override
-    byte[] encrypt(byte[] plaintextBytes, String password, int nBits) {
-        byte[] key = makeKey(password, nBits);
+    @Override // Aes
+    PreparedKey prepareKey(byte[] key) {
+        // generate key schedule - an expansion of the key into distinct Key Rounds for each round
+        byte[][] keySchedule = keyExpansion(key);
+        return new PreparedKey(key) {
+            @Override // PreparedKey
+            Ctr makeCtr(byte[] counterBlock) {
+                return new BlockCtr(counterBlock) {
+                    @Override // BlockCtr
+                    void cipherBlock(byte[] counterBlock, byte[] keystream) {
+                        System.arraycopy(cipher(counterBlock, keySchedule), 0, keystream, 0, BLOCK_SIZE);
+                    }
+                };
+            }
 
-        // initialise 1st 8 bytes of counter block with nonce
-        // (NIST SP800-38A §B.2): [0-1] = millisec,
-        // [2-3] = random, [4-7] = seconds, together giving full sub-millisec
-        // timestamp: milliseconds since 1-Jan-1970
-        long timestamp = new Date().getTime();
-        long nonceMs = timestamp % 1000;
-        long nonceSec = (long) Math.floor(timestamp / 1000.0);
-        long nonceRnd = (long) (Math.random() * 0xffff);
-        // DEBUGGING ONLY!
-        //nonceMs = nonceSec = nonceRnd = 0x55555555;
+            @Override // PreparedKey
+            protected byte[] encryptBytes(byte[] plaintextBytes) {
+                // initialise 1st 8 bytes of counter block with nonce
+                byte[] iv = newCounterBlock();
 
-        byte[] iv = new byte[]{
-                // 16-byte array; blocksize is fixed at 16 for AES_Reference
-                (byte) (nonceMs & 0xff), (byte) (nonceMs >>> 8 & 0xff),
-                (byte) (nonceRnd & 0xff), (byte) ((nonceRnd >>> 8) & 0xff),
-                (byte) (nonceSec & 0xff), (byte) ((nonceSec >>> 8) & 0xff),
-                (byte) ((nonceSec >>> 16) & 0xff), (byte) ((nonceSec >>> 24) & 0xff),
-                0, 0, 0, 0, 0, 0, 0, 0
-        };
+                byte[] ciphertextBytes = nist(plaintextBytes, keySchedule, iv);
+                return makeFinal(iv, ciphertextBytes);
+            }
 
-        byte[] ciphertextBytes = nist(plaintextBytes, key, iv);
-        return makeFinal(iv, ciphertextBytes);
-    }
+            @Override // PreparedKey
+            protected byte[] decryptBytes(byte[] ciphertextBytes) {
+                byte[] counterBlock = getIVBytes(ciphertextBytes);
+                ciphertextBytes = getDataBytes(ciphertextBytes);
+                return nist(ciphertextBytes, keySchedule, counterBlock);
+            }
 
-    @Override
-    byte[] decrypt(byte[] ciphertextBytes, String password, int nBits) {
-        byte[] key = makeKey(password, nBits);
-        byte[] counterBlock = getIVBytes(ciphertextBytes);
-        ciphertextBytes = getDataBytes(ciphertextBytes);
-        return nist(ciphertextBytes, key, counterBlock);
+            @Override // PreparedKey
+            protected void wipe() {
+                super.wipe();
+                for (byte[] w : keySchedule)
+                    Arrays.fill(w, (byte) 0);
+            }
+        };
     }
 }
-
@@ -0,0 +1,171 @@
+package com.cdot.squirrel.crypto;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Counter-mode AES using the table-driven AesEngine. Produces byte-for-byte the same
+ * ciphertext as AES_Reference (same key derivation, nonce header and counter increment),
+ * but without allocating per block, so it is much faster on large hoards. Large payloads are
+ * processed in parallel across all cores.
+ */
+public class AES_Table extends Aes {
+
+    // Below this many bytes, encrypt/decrypt on the calling thread
+    static final int PARALLEL_THRESHOLD = 256 * 1024;
+
+    // Bytes of data processed by each parallel task; must be a multiple of BLOCK_SIZE
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    // Pool for parallel CTR. ForkJoinPool.commonPool() needs API 24, so we have our own.
+    private static ForkJoinPool sPool;
+
+    private static synchronized ForkJoinPool getPool() {
+        if (sPool == null)
+            sPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        return sPool;
+    }
+
+    /**
+     * Task to apply CTR to one chunk of the data, from a precomputed counter block
+     */
+    private static class CtrChunk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] w;
+        private final byte[] counterBlock, in, out;
+        private final int inOff, outOff, length;
+
+        CtrChunk(int[] w, byte[] counterBlock, byte[] in, int inOff, byte[] out, int outOff, int length) {
+            this.w = w;
+            this.counterBlock = counterBlock;
+            this.in = in;
+            this.inOff = inOff;
+            this.out = out;
+            this.outOff = outOff;
+            this.length = length;
+        }
+
+        @Override // RecursiveAction
+        protected void compute() {
+            ctr(w, counterBlock, in, inOff, out, outOff, length);
+        }
+    }
+
+    /**
+     * Counter Mode (CTR) [NIST SP 800-38A §6.5] over a region of a byte array. The counter
+     * block is advanced in place, so a subsequent call will continue the keystream.
+     *
+     * @param w            key schedule from AesEngine.keySchedule()
+     * @param counterBlock 16-byte counter block, updated to the next unused counter
+     * @param in           plaintext to be encrypted / ciphertext to be decrypted
+     * @param inOff        offset of the first byte in 'in'
+     * @param out          array to receive the result, may be the same as 'in'
+     * @param outOff       offset of the first byte in 'out'
+     * @param length       number of bytes to process
+     */
+    static void ctr(int[] w, byte[] counterBlock, byte[] in, int inOff, byte[] out, int outOff, int length) {
+        byte[] cipherCntr = new byte[BLOCK_SIZE];
+        int done = 0;
+        while (done < length) {
+            // ---- encrypt/decrypt counter block; Oⱼ = CIPHₖ(Tⱼ) ----
+            AesEngine.encryptBlock(w, counterBlock, 0, cipherCntr, 0);
+            // block size is reduced on final block
+            int blockLength = Math.min(BLOCK_SIZE, length - done);
+            // ---- xor with ciphered counter byte-by-byte; Cⱼ = Pⱼ ⊕ Oⱼ ----
+            for (int i = 0; i < blockLength; i++)
+                out[outOff + done + i] = (byte) (cipherCntr[i] ^ in[inOff + done + i]);
+            incrementCounter(counterBlock);
+            done += blockLength;
+        }
+    }
+
+    /**
+     * As ctr(), but splits the data into chunks that are processed in parallel, each starting
+     * from its own counter block. The output, and the final state of counterBlock, are
+     * identical to ctr(). Data shorter than PARALLEL_THRESHOLD is processed on the calling
+     * thread.
+     */
+    static void parallelCtr(int[] w, byte[] counterBlock, byte[] in, int inOff, byte[] out, int outOff, int length) {
+        parallelCtr(w, counterBlock, in, inOff, out, outOff, length, PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * As parallelCtr(), with the threshold below which data is processed on the calling thread
+     */
+    static void parallelCtr(int[] w, byte[] counterBlock, byte[] in, int inOff, byte[] out, int outOff, int length, int threshold) {
+        if (length < threshold) {
+            ctr(w, counterBlock, in, inOff, out, outOff, length);
+            return;
+        }
+        List<CtrChunk> chunks = new ArrayList<>();
+        for (int done = 0; done < length; done += CHUNK_SIZE) {
+            int n = Math.min(CHUNK_SIZE, length - done);
+            chunks.add(new CtrChunk(w, counterBlock.clone(), in, inOff + done, out, outOff + done, n));
+            // Step the counter on to the start of the next chunk. The reference counter
+            // increment has no closed form, but stepping is trivial next to the cipher.
+            for (int b = 0; b < n; b += BLOCK_SIZE)
+                incrementCounter(counterBlock);
+        }
+        getPool().invoke(new RecursiveAction() {
+            @Override // RecursiveAction
+            protected void compute() {
+                invokeAll(chunks);
+            }
+        });
+    }
+
+    @Override // Aes
+    protected byte[] makeKey(String password, int nBits) {
+        if (!(nBits == 128 || nBits == 192 || nBits == 256))
+            throw new Error("Key size is not 128 / 192 / 256");
+        int nBytes = nBits / 8;
+        byte[] pwBytes = Arrays.copyOf(password.getBytes(), nBytes);
+        // get 16-byte key
+        byte[] key = new byte[BLOCK_SIZE];
+        AesEngine.encryptBlock(AesEngine.keySchedule(pwBytes), pwBytes, 0, key, 0);
+        return expandKey(key, nBytes);
+    }
+
+    @Override // Aes
+    PreparedKey prepareKey(byte[] key) {
+        int[] w = AesEngine.keySchedule(key);
+        return new PreparedKey(key) {
+            @Override // PreparedKey
+            Ctr makeCtr(byte[] counterBlock) {
+                return new BlockCtr(counterBlock) {
+                    @Override // BlockCtr
+                    void cipherBlock(byte[] counterBlock, byte[] keystream) {
+                        AesEngine.encryptBlock(w, counterBlock, 0, keystream, 0);
+                    }
+                };
+            }
+
+            @Override // PreparedKey
+            protected byte[] encryptBytes(byte[] plaintextBytes) {
+                byte[] counterBlock = newCounterBlock();
+                // Stick the first 8 bytes of the counter block in front of the ciphertext
+                byte[] finalBytes = Arrays.copyOf(counterBlock, 8 + plaintextBytes.length);
+                parallelCtr(w, counterBlock, plaintextBytes, 0, finalBytes, 8, plaintextBytes.length);
+                return finalBytes;
+            }
+
+            @Override // PreparedKey
+            protected byte[] decryptBytes(byte[] ciphertextBytes) {
+                byte[] counterBlock = getIVBytes(ciphertextBytes);
+                byte[] plaintextBytes = new byte[ciphertextBytes.length - 8];
+                parallelCtr(w, counterBlock, ciphertextBytes, 8, plaintextBytes, 0, plaintextBytes.length);
+                return plaintextBytes;
+            }
+
+            @Override // PreparedKey
+            protected void wipe() {
+                super.wipe();
+                Arrays.fill(w, 0);
+            }
+        };
+    }
+}
@@ -2,9 +2,21 @@ package com.cdot.squirrel.crypto;
 
 import android.os.Build;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Basic AES_Reference support, based on
@@ -15,8 +27,203 @@ public abstract class Aes {
 
     static final int BLOCK_SIZE = 16; // block size fixed at 16 bytes / 128 bits (Nb=4) for AES_Reference
 
+    // Size of the working buffer used when streaming
+    static final int BUFFER_SIZE = 4096;
+
+    /**
+     * A counter-mode keystream that can be applied to successive chunks of data. Chunks need
+     * not be whole blocks; the keystream carries on where the previous chunk stopped.
+     */
+    interface Ctr {
+        /**
+         * Xor the next len bytes of keystream with in[inOff..] into out[outOff..]. in and out
+         * may be the same array.
+         */
+        void update(byte[] in, int inOff, int len, byte[] out, int outOff);
+    }
+
+    /**
+     * Ctr over a block cipher function, using the same counter increment as AES_Reference
+     */
+    abstract static class BlockCtr implements Ctr {
+        private final byte[] mCounterBlock;
+        private final byte[] mKeystream = new byte[BLOCK_SIZE];
+        private int mUsed = BLOCK_SIZE; // bytes of mKeystream already used
+
+        /**
+         * @param counterBlock initial counter block, will be advanced in place
+         */
+        BlockCtr(byte[] counterBlock) {
+            mCounterBlock = counterBlock;
+        }
+
+        /**
+         * Encrypt a counter block
+         *
+         * @param counterBlock block to encrypt
+         * @param keystream    16-byte array to receive the encrypted block
+         */
+        abstract void cipherBlock(byte[] counterBlock, byte[] keystream);
+
+        @Override // Ctr
+        public void update(byte[] in, int inOff, int len, byte[] out, int outOff) {
+            for (int i = 0; i < len; i++) {
+                if (mUsed == BLOCK_SIZE) {
+                    cipherBlock(mCounterBlock, mKeystream);
+                    incrementCounter(mCounterBlock);
+                    mUsed = 0;
+                }
+                out[outOff + i] = (byte) (in[inOff + i] ^ mKeystream[mUsed++]);
+            }
+        }
+    }
+
+    /**
+     * A cipher key derived from a password, together with whatever expanded form of it the
+     * implementation needs, so that many payloads can be encrypted/decrypted without repeating
+     * the key derivation and expansion. Obtain one from Aes.prepare().
+     * <p>
+     * Keys are reference counted. Each prepare() returns a reference, which must be release()d
+     * when finished with, and the key cache holds another. The key material is zeroed when the
+     * last reference is released, after which the key can no longer be used.
+     */
+    public abstract static class PreparedKey {
+        protected final byte[] mKey; // key derived from the password
+        // References held, including one for each encrypt/decrypt in progress
+        private int mRefs = 1;
+
+        /**
+         * The new key has one reference, held by the caller
+         *
+         * @param key cipher key, from makeKey
+         */
+        protected PreparedKey(byte[] key) {
+            mKey = key;
+        }
+
+        /**
+         * Make a keystream starting from the given counter block
+         *
+         * @param counterBlock initial 16-byte counter block, will be advanced as the keystream is used
+         * @return a keystream
+         */
+        abstract Ctr makeCtr(byte[] counterBlock);
+
+        /**
+         * Encrypt a byte array, producing the nonce header followed by the ciphertext.
+         * Override for a faster implementation.
+         */
+        protected byte[] encryptBytes(byte[] plaintextBytes) {
+            byte[] counterBlock = newCounterBlock();
+            byte[] finalBytes = Arrays.copyOf(counterBlock, 8 + plaintextBytes.length);
+            makeCtr(counterBlock).update(plaintextBytes, 0, plaintextBytes.length, finalBytes, 8);
+            return finalBytes;
+        }
+
+        /**
+         * Decrypt a byte array that starts with the nonce header.
+         * Override for a faster implementation.
+         */
+        protected byte[] decryptBytes(byte[] ciphertextBytes) {
+            byte[] plaintextBytes = new byte[ciphertextBytes.length - 8];
+            makeCtr(getIVBytes(ciphertextBytes)).update(ciphertextBytes, 8, plaintextBytes.length, plaintextBytes, 0);
+            return plaintextBytes;
+        }
+
+        /**
+         * Zero the key material. Subclasses must extend this to zero their expanded forms.
+         */
+        protected void wipe() {
+            Arrays.fill(mKey, (byte) 0);
+        }
+
+        // Take another reference to the key
+        private synchronized void acquire() {
+            if (mRefs == 0)
+                throw new Error("Key has been destroyed");
+            mRefs++;
+        }
+
+        /**
+         * Release a reference to the key. The key material is zeroed when the last reference
+         * is released.
+         */
+        public synchronized void release() {
+            if (mRefs == 0)
+                throw new Error("Key has been destroyed");
+            if (--mRefs == 0)
+                wipe();
+        }
+
+        /**
+         * Encrypt a byte array using this key
+         *
+         * @param plaintextBytes Source to be encrypted.
+         * @return Encrypted data
+         */
+        public byte[] encrypt(byte[] plaintextBytes) {
+            acquire();
+            try {
+                return encryptBytes(plaintextBytes);
+            } finally {
+                release();
+            }
+        }
+
+        /**
+         * Decrypt a byte array using this key
+         *
+         * @param ciphertextBytes Source to be decrypted.
+         * @return Decrypted data
+         */
+        public byte[] decrypt(byte[] ciphertextBytes) {
+            acquire();
+            try {
+                return decryptBytes(ciphertextBytes);
+            } finally {
+                release();
+            }
+        }
+
+        /**
+         * Encrypt a string using this key, returning a string.
+         *
+         * @param plaintext Source to be encrypted.
+         * @return Base64 encoded encrypted data string
+         */
+        public String encrypt(String plaintext) {
+            return base64Encode(encrypt(plaintext.getBytes()));
+        }
+
+        /**
+         * Decrypt a string using this key
+         *
+         * @param ciphertext Base64 encoded source to be decrypted.
+         * @return Decrypted data
+         */
+        public String decrypt(String ciphertext) {
+            // decode from UTF8 back to Unicode multi-byte chars
+            return new String(decrypt(base64Decode(ciphertext)), StandardCharsets.UTF_8);
+        }
+    }
+
+    // Maximum number of prepared keys kept in the key cache
+    static final int MAX_CACHED_KEYS = 8;
+
+    // Cache of prepared keys, least recently used first. The cache holds a reference to each
+    // key, which is released when the key is evicted.
+    private static final Map<String, PreparedKey> sKeyCache = new LinkedHashMap<String, PreparedKey>(MAX_CACHED_KEYS, 0.75f, true) {
+        @Override // LinkedHashMap
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedKey> eldest) {
+            if (size() <= MAX_CACHED_KEYS)
+                return false;
+            eldest.getValue().release();
+            return true;
+        }
+    };
+
     // sBox is pre-computed multiplicative inverse in GF(2^8) used in subBytes and keyExpansion [§5.1.1]
-    private static final int[] iS_BOX = new int[]{
+    static final int[] iS_BOX = new int[]{
             0x63, 0x7c, 0x77, 0x7b, 0xf2, 0x6b, 0x6f, 0xc5, 0x30, 0x01, 0x67, 0x2b, 0xfe, 0xd7, 0xab, 0x76,
             0xca, 0x82, 0xc9, 0x7d, 0xfa, 0x59, 0x47, 0xf0, 0xad, 0xd4, 0xa2, 0xaf, 0x9c, 0xa4, 0x72, 0xc0,
             0xb7, 0xfd, 0x93, 0x26, 0x36, 0x3f, 0xf7, 0xcc, 0x34, 0xa5, 0xe5, 0xf1, 0x71, 0xd8, 0x31, 0x15,
@@ -227,6 +434,49 @@ public abstract class Aes {
         return w;
     }
 
+    /**
+     * Initialise a 16-byte counter block with a nonce in the first 8 bytes
+     * (NIST SP800-38A §B.2): [0-1] = millisec, [2-3] = random, [4-7] = seconds, together
+     * giving full sub-millisec uniqueness. The counter (last 8 bytes) is zero.
+     *
+     * @return a new counter block
+     */
+    static byte[] newCounterBlock() {
+        // timestamp: milliseconds since 1-Jan-1970
+        long timestamp = new Date().getTime();
+        long nonceMs = timestamp % 1000;
+        long nonceSec = (long) Math.floor(timestamp / 1000.0);
+        long nonceRnd = (long) (Math.random() * 0xffff);
+        // DEBUGGING ONLY!
+        //nonceMs = nonceSec = nonceRnd = 0x55555555;
+
+        return new byte[]{
+                // 16-byte array; blocksize is fixed at 16 for AES_Reference
+                (byte) (nonceMs & 0xff), (byte) (nonceMs >>> 8 & 0xff),
+                (byte) (nonceRnd & 0xff), (byte) ((nonceRnd >>> 8) & 0xff),
+                (byte) (nonceSec & 0xff), (byte) ((nonceSec >>> 8) & 0xff),
+                (byte) ((nonceSec >>> 16) & 0xff), (byte) ((nonceSec >>> 24) & 0xff),
+                0, 0, 0, 0, 0, 0, 0, 0
+        };
+    }
+
+    /**
+     * Increment the counter in the 2nd 8 bytes of a counter block (big-endian). Note that
+     * the carry is propagated from signed bytes, exactly as the reference implementation always
+     * has, so every implementation must use this to stay interoperable with existing data.
+     *
+     * @param counterBlock 16-byte counter block to increment in place
+     */
+    static void incrementCounter(byte[] counterBlock) {
+        // &FF to convert unsigned byte to int
+        int t = (counterBlock[BLOCK_SIZE - 1] & 0xFF) + 1;
+        // and propagate carry digits
+        for (int i = BLOCK_SIZE - 1; i >= 8; i--) {
+            counterBlock[i] = (byte) (t & 0xFF);
+            t = counterBlock[i - 1] + ((t >> 8) & 1);
+        }
+    }
+
     /**
      * Decrypt a byte array using AES
      *
@@ -235,7 +485,14 @@ public abstract class Aes {
      * @param nBits           Number of bits to be used in the key; 128 / 192 / 256.
      * @return Decrypted data
      */
-    abstract byte[] decrypt(byte[] ciphertextBytes, String password, int nBits);
+    byte[] decrypt(byte[] ciphertextBytes, String password, int nBits) {
+        PreparedKey pk = prepare(password, nBits);
+        try {
+            return pk.decrypt(ciphertextBytes);
+        } finally {
+            pk.release();
+        }
+    }
 
     /**
      * Encrypt a byte array using AES.
@@ -246,7 +503,195 @@ public abstract class Aes {
      *                       128 / 192 / 256.
      * @return Encrypted data
      */
-    abstract byte[] encrypt(byte[] plaintextBytes, String password, int nBits);
+    byte[] encrypt(byte[] plaintextBytes, String password, int nBits) {
+        PreparedKey pk = prepare(password, nBits);
+        try {
+            return pk.encrypt(plaintextBytes);
+        } finally {
+            pk.release();
+        }
+    }
+
+    /**
+     * Wrap a cipher key in a PreparedKey for this implementation. Implementations that don't
+     * derive keys using makeKey don't override this.
+     *
+     * @param key cipher key, from makeKey
+     * @return a prepared key
+     */
+    PreparedKey prepareKey(byte[] key) {
+        throw new Error(getClass().getSimpleName() + " does not support prepared keys");
+    }
+
+    /**
+     * Get a prepared key for the password, from the key cache if possible. The key derivation
+     * is only done the first time the password is seen (or after the key has been evicted),
+     * and isn't done while holding the cache lock, so other threads aren't held up by it.
+     *
+     * @param password The password to use to generate the key.
+     * @param nBits    Number of bits to be used in the key; 128 / 192 / 256.
+     * @return a prepared key, which can be used for as long as needed, even after it has
+     * been evicted from the cache. release() it when finished with it.
+     */
+    public PreparedKey prepare(String password, int nBits) {
+        String id = getClass().getName() + ":" + nBits + ":" + digest(password);
+        PreparedKey pk;
+        synchronized (sKeyCache) {
+            pk = sKeyCache.get(id);
+            if (pk != null) {
+                // The cache's reference keeps it alive until we have our own
+                pk.acquire();
+                return pk;
+            }
+        }
+        PreparedKey made = prepareKey(makeKey(password, nBits));
+        synchronized (sKeyCache) {
+            pk = sKeyCache.get(id);
+            if (pk != null) {
+                // Another thread made it first
+                made.release();
+                pk.acquire();
+                return pk;
+            }
+            // Reference for the cache
+            made.acquire();
+            sKeyCache.put(id, made);
+            return made;
+        }
+    }
+
+    /**
+     * Drop all cached keys, e.g. when the hoard is locked. Keys not still held by a caller
+     * of prepare() are zeroed.
+     */
+    public static void clearKeyCache() {
+        synchronized (sKeyCache) {
+            for (PreparedKey pk : sKeyCache.values())
+                pk.release();
+            sKeyCache.clear();
+        }
+    }
+
+    /**
+     * Hash a password, so the key cache doesn't have to keep passwords
+     */
+    private static String digest(String password) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(password.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash)
+                sb.append(String.format("%02x", b & 0xFF));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new Error("No SHA-256 " + nsae);
+        }
+    }
+
+    /**
+     * Get a stream that encrypts everything written to it onto another stream. The 8-byte
+     * nonce header is written immediately.
+     *
+     * @param out      stream to receive the encrypted data
+     * @param password The password to use to generate a key.
+     * @param nBits    Number of bits to be used in the key; 128 / 192 / 256.
+     * @return a stream to write plaintext to. Closing it closes out, and releases the key.
+     * @throws IOException if the header can't be written
+     */
+    public OutputStream encryptingStream(OutputStream out, String password, int nBits) throws IOException {
+        byte[] counterBlock = newCounterBlock();
+        out.write(counterBlock, 0, 8);
+        return new CtrOutputStream(out, prepare(password, nBits), counterBlock);
+    }
+
+    /**
+     * Get a stream that decrypts data read from another stream. The 8-byte nonce header is
+     * read immediately.
+     *
+     * @param in       stream to read encrypted data from
+     * @param password The password to use to generate the key.
+     * @param nBits    Number of bits to be used in the key; 128 / 192 / 256.
+     * @return a stream to read plaintext from. Closing it closes in, and releases the key.
+     * @throws IOException if the header can't be read
+     */
+    public InputStream decryptingStream(InputStream in, String password, int nBits) throws IOException {
+        byte[] counterBlock = new byte[BLOCK_SIZE];
+        int got = 0;
+        while (got < 8) {
+            int n = in.read(counterBlock, got, 8 - got);
+            if (n < 0)
+                throw new EOFException("Missing nonce header");
+            got += n;
+        }
+        return new CtrInputStream(in, prepare(password, nBits), counterBlock);
+    }
+
+    /**
+     * Encrypt the remaining bytes of a buffer into another buffer, prefixed by the 8-byte
+     * nonce header.
+     *
+     * @param plaintext  Source to be encrypted; its position is advanced to its limit
+     * @param ciphertext Buffer to receive plaintext.remaining() + 8 bytes
+     * @param password   The password to use to generate a key.
+     * @param nBits      Number of bits to be used in the key; 128 / 192 / 256.
+     */
+    public void encrypt(ByteBuffer plaintext, ByteBuffer ciphertext, String password, int nBits) {
+        if (ciphertext.remaining() < plaintext.remaining() + 8)
+            throw new BufferOverflowException();
+        byte[] counterBlock = newCounterBlock();
+        ciphertext.put(counterBlock, 0, 8);
+        PreparedKey pk = prepare(password, nBits);
+        try {
+            transform(pk.makeCtr(counterBlock), plaintext, ciphertext);
+        } finally {
+            pk.release();
+        }
+    }
+
+    /**
+     * Decrypt the remaining bytes of a buffer, which must start with the 8-byte nonce header,
+     * into another buffer.
+     *
+     * @param ciphertext Source to be decrypted; its position is advanced to its limit
+     * @param plaintext  Buffer to receive ciphertext.remaining() - 8 bytes
+     * @param password   The password to use to generate the key.
+     * @param nBits      Number of bits to be used in the key; 128 / 192 / 256.
+     */
+    public void decrypt(ByteBuffer ciphertext, ByteBuffer plaintext, String password, int nBits) {
+        if (ciphertext.remaining() < 8)
+            throw new BufferUnderflowException();
+        if (plaintext.remaining() < ciphertext.remaining() - 8)
+            throw new BufferOverflowException();
+        byte[] counterBlock = new byte[BLOCK_SIZE];
+        ciphertext.get(counterBlock, 0, 8);
+        PreparedKey pk = prepare(password, nBits);
+        try {
+            transform(pk.makeCtr(counterBlock), ciphertext, plaintext);
+        } finally {
+            pk.release();
+        }
+    }
+
+    /**
+     * Apply a keystream to the remaining bytes of a buffer, working directly on backing arrays
+     * where possible, otherwise through a fixed working buffer.
+     */
+    private static void transform(Ctr ctr, ByteBuffer in, ByteBuffer out) {
+        int len = in.remaining();
+        if (in.hasArray() && out.hasArray()) {
+            ctr.update(in.array(), in.arrayOffset() + in.position(), len,
+                    out.array(), out.arrayOffset() + out.position());
+            in.position(in.position() + len);
+            out.position(out.position() + len);
+            return;
+        }
+        byte[] buf = new byte[Math.min(BUFFER_SIZE, len)];
+        while (in.hasRemaining()) {
+            int n = Math.min(buf.length, in.remaining());
+            in.get(buf, 0, n);
+            ctr.update(buf, 0, n, buf, 0);
+            out.put(buf, 0, n);
+        }
+    }
 
     /**
      * Encrypt a string using AES_Reference in Counter mode, returning a string.
@@ -258,13 +703,7 @@ public abstract class Aes {
      * @return Base64 encoded encrypted data string
      */
     String encrypt(String plaintext, String password, int nBits) {
-        byte[] ciphertextBytes = encrypt(plaintext.getBytes(), password, nBits);
-        // base-64 encode ciphertext
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O || Build.VERSION.SDK_INT == 0) {
-            byte[] bytes = Base64.getEncoder().encode(ciphertextBytes);
-            return new String(bytes);
-        } else
-            return android.util.Base64.encodeToString(ciphertextBytes, android.util.Base64.DEFAULT);
+        return base64Encode(encrypt(plaintext.getBytes(), password, nBits));
     }
 
     /**
@@ -276,17 +715,32 @@ public abstract class Aes {
      * @return Decrypted data
      */
     String decrypt(String ciphertext, String password, int nBits) {
-        byte[] ciphertextBytes;
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O || Build.VERSION.SDK_INT == 0)
-            ciphertextBytes = Base64.getDecoder().decode(ciphertext);
-        else
-            ciphertextBytes = android.util.Base64.decode(ciphertext, android.util.Base64.DEFAULT);
-
-        byte[] plaintextBytes = decrypt(ciphertextBytes, password, nBits);
+        byte[] plaintextBytes = decrypt(base64Decode(ciphertext), password, nBits);
         // decode from UTF8 back to Unicode multi-byte chars
         return new String(plaintextBytes, StandardCharsets.UTF_8);
     }
 
+    /**
+     * Base-64 encode ciphertext
+     */
+    static String base64Encode(byte[] ciphertextBytes) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O || Build.VERSION.SDK_INT == 0) {
+            byte[] bytes = Base64.getEncoder().encode(ciphertextBytes);
+            return new String(bytes);
+        } else
+            return android.util.Base64.encodeToString(ciphertextBytes, android.util.Base64.DEFAULT);
+    }
+
+    /**
+     * Base-64 decode ciphertext
+     */
+    static byte[] base64Decode(String ciphertext) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O || Build.VERSION.SDK_INT == 0)
+            return Base64.getDecoder().decode(ciphertext);
+        else
+            return android.util.Base64.decode(ciphertext, android.util.Base64.DEFAULT);
+    }
+
     /**
      * Use AES itself to encrypt password to get cipher key (using
      * plain password as source for key expansion) - gives us well
@@ -306,7 +760,7 @@ public abstract class Aes {
     /**
      * Get the IV from the head of the encrypted data
      */
-    protected byte[] getIVBytes(byte[] ciphertext) {
+    protected static byte[] getIVBytes(byte[] ciphertext) {
         byte[] ivBytes = Arrays.copyOf(ciphertext, 16);
         for (int i = 8; i < 16; i++)
             ivBytes[i] = 0;
@@ -318,7 +772,7 @@ public abstract class Aes {
      * @param ciphertext the entire data block
      * @return the ciphertext from the data block
      */
-    protected byte[] getDataBytes(byte[] ciphertext) {
+    protected static byte[] getDataBytes(byte[] ciphertext) {
         // convert ciphertext to byte array (skipping past initial 8 bytes)
         byte[] b = new byte[ciphertext.length - 8];
         System.arraycopy(ciphertext, 8, b, 0, ciphertext.length - 8);
@@ -331,7 +785,7 @@ public abstract class Aes {
      * @param ciphertext the encyrpted text
      * @return a data block
      */
-    protected byte[] makeFinal(byte[] iv, byte[] ciphertext) {
+    protected static byte[] makeFinal(byte[] iv, byte[] ciphertext) {
         // Stick the first 8 bytes of the iv in front of the ciphertext
         byte[] finalBytes = Arrays.copyOf(iv, 8 + ciphertext.length);
         System.arraycopy(ciphertext, 0, finalBytes, 8, ciphertext.length);
@@ -0,0 +1,139 @@
+package com.cdot.squirrel.crypto;
+
+/**
+ * Table-driven AES block cipher. Produces exactly the same output as Aes.cipher, but works on
+ * 32-bit words using pre-computed T-tables that combine subBytes, shiftRows and mixColumns
+ * [§5.1.1-§5.1.3] into four lookups per column, with the key schedule held in a flat int array.
+ * Encrypting a block allocates nothing, so it is suitable for bulk counter-mode work.
+ * <p>
+ * Words are big-endian, so word c of the state is column c of the §3.4 state array.
+ */
+final class AesEngine {
+
+    private static final int Nb = 4; // block size (in words), fixed at 4 for AES
+
+    // Forward S-box, as ints for table lookups
+    private static final int[] S = Aes.iS_BOX;
+
+    // Te0[x] = S[x]•{02}, S[x], S[x], S[x]•{03}; Te1..Te3 are byte rotations of Te0
+    private static final int[] Te0 = new int[256];
+    private static final int[] Te1 = new int[256];
+    private static final int[] Te2 = new int[256];
+    private static final int[] Te3 = new int[256];
+
+    // Round constants, in the top byte of a word [§5.2]
+    private static final int[] RCON = {
+            0x00000000, 0x01000000, 0x02000000, 0x04000000, 0x08000000, 0x10000000,
+            0x20000000, 0x40000000, 0x80000000, 0x1b000000, 0x36000000
+    };
+
+    static {
+        for (int x = 0; x < 256; x++) {
+            int s = S[x];
+            int s2 = ((s & 0x80) != 0) ? ((s << 1) ^ 0x011b) : (s << 1); // s•{02} in GF(2^8)
+            int s3 = s2 ^ s; // s•{03} in GF(2^8)
+            int t = (s2 << 24) | (s << 16) | (s << 8) | s3;
+            Te0[x] = t;
+            Te1[x] = (t >>> 8) | (t << 24);
+            Te2[x] = (t >>> 16) | (t << 16);
+            Te3[x] = (t >>> 24) | (t << 8);
+        }
+    }
+
+    private AesEngine() {
+    }
+
+    /**
+     * Apply the S-box to each byte of a word
+     */
+    private static int subWord(int w) {
+        return (S[w >>> 24] << 24) | (S[(w >>> 16) & 0xFF] << 16)
+                | (S[(w >>> 8) & 0xFF] << 8) | S[w & 0xFF];
+    }
+
+    /**
+     * Perform key expansion to generate a key schedule from a cipher key [§5.2].
+     * Word-for-word the same schedule as Aes.keyExpansion.
+     *
+     * @param key - Cipher key as 16/24/32-byte array.
+     * @return Expanded key schedule, Nb * (Nr + 1) words
+     */
+    static int[] keySchedule(byte[] key) {
+        int Nk = key.length / 4; // key length (in words): 4/6/8 for 128/192/256-bit keys
+        int Nr = Nk + 6; // no of rounds: 10/12/14 for 128/192/256-bit keys
+
+        int[] w = new int[Nb * (Nr + 1)];
+        for (int i = 0; i < Nk; i++)
+            w[i] = ((key[4 * i] & 0xFF) << 24) | ((key[4 * i + 1] & 0xFF) << 16)
+                    | ((key[4 * i + 2] & 0xFF) << 8) | (key[4 * i + 3] & 0xFF);
+
+        for (int i = Nk; i < w.length; i++) {
+            int temp = w[i - 1];
+            // each Nk'th word has extra transformation
+            if (i % Nk == 0)
+                temp = subWord((temp << 8) | (temp >>> 24)) ^ RCON[i / Nk];
+            // 256-bit key has subWord applied every 4th word
+            else if (Nk > 6 && i % Nk == 4)
+                temp = subWord(temp);
+            w[i] = w[i - Nk] ^ temp;
+        }
+        return w;
+    }
+
+    /**
+     * Encrypt a single 16-byte block [§5.1]. in and out may be the same array.
+     *
+     * @param w      key schedule from keySchedule()
+     * @param in     input bytes
+     * @param inOff  offset of the block in the input
+     * @param out    output bytes
+     * @param outOff offset of the block in the output
+     */
+    static void encryptBlock(int[] w, byte[] in, int inOff, byte[] out, int outOff) {
+        int Nr = w.length / Nb - 1; // no of rounds: 10/12/14 for 128/192/256-bit keys
+
+        int s0 = getWord(in, inOff) ^ w[0];
+        int s1 = getWord(in, inOff + 4) ^ w[1];
+        int s2 = getWord(in, inOff + 8) ^ w[2];
+        int s3 = getWord(in, inOff + 12) ^ w[3];
+
+        int k = Nb;
+        for (int round = 1; round < Nr; round++) {
+            int t0 = Te0[s0 >>> 24] ^ Te1[(s1 >>> 16) & 0xFF] ^ Te2[(s2 >>> 8) & 0xFF] ^ Te3[s3 & 0xFF] ^ w[k];
+            int t1 = Te0[s1 >>> 24] ^ Te1[(s2 >>> 16) & 0xFF] ^ Te2[(s3 >>> 8) & 0xFF] ^ Te3[s0 & 0xFF] ^ w[k + 1];
+            int t2 = Te0[s2 >>> 24] ^ Te1[(s3 >>> 16) & 0xFF] ^ Te2[(s0 >>> 8) & 0xFF] ^ Te3[s1 & 0xFF] ^ w[k + 2];
+            int t3 = Te0[s3 >>> 24] ^ Te1[(s0 >>> 16) & 0xFF] ^ Te2[(s1 >>> 8) & 0xFF] ^ Te3[s2 & 0xFF] ^ w[k + 3];
+            s0 = t0;
+            s1 = t1;
+            s2 = t2;
+            s3 = t3;
+            k += Nb;
+        }
+
+        // Final round has no mixColumns
+        putWord(finalWord(s0, s1, s2, s3) ^ w[k], out, outOff);
+        putWord(finalWord(s1, s2, s3, s0) ^ w[k + 1], out, outOff + 4);
+        putWord(finalWord(s2, s3, s0, s1) ^ w[k + 2], out, outOff + 8);
+        putWord(finalWord(s3, s0, s1, s2) ^ w[k + 3], out, outOff + 12);
+    }
+
+    /**
+     * subBytes and shiftRows for one column of the final round
+     */
+    private static int finalWord(int a, int b, int c, int d) {
+        return (S[a >>> 24] << 24) | (S[(b >>> 16) & 0xFF] << 16)
+                | (S[(c >>> 8) & 0xFF] << 8) | S[d & 0xFF];
+    }
+
+    private static int getWord(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16)
+                | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+
+    private static void putWord(int w, byte[] b, int off) {
+        b[off] = (byte) (w >>> 24);
+        b[off + 1] = (byte) (w >>> 16);
+        b[off + 2] = (byte) (w >>> 8);
+        b[off + 3] = (byte) w;
+    }
+}
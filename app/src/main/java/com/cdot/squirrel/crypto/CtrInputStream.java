@@ -0,0 +1,76 @@
+package com.cdot.squirrel.crypto;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream that decrypts counter mode data as it is read. Data is decrypted in place in
+ * the caller's buffer, so memory use does not depend on the amount read.
+ * Obtain one from Aes.decryptingStream
+ */
+public class CtrInputStream extends FilterInputStream {
+    private final Aes.Ctr mCtr;
+    private final byte[] mOne = new byte[1];
+    // Reference to the key, released on close
+    private Aes.PreparedKey mKey;
+
+    /**
+     * @param in           stream to read encrypted data from, positioned after the nonce header
+     * @param key          key to decrypt with. The stream takes over the caller's reference.
+     * @param counterBlock initial counter block
+     */
+    CtrInputStream(InputStream in, Aes.PreparedKey key, byte[] counterBlock) {
+        super(in);
+        mKey = key;
+        mCtr = key.makeCtr(counterBlock);
+    }
+
+    @Override // FilterInputStream
+    public void close() throws IOException {
+        if (mKey != null) {
+            mKey.release();
+            mKey = null;
+        }
+        super.close();
+    }
+
+    @Override // FilterInputStream
+    public int read() throws IOException {
+        int b = in.read();
+        if (b < 0)
+            return b;
+        mOne[0] = (byte) b;
+        mCtr.update(mOne, 0, 1, mOne, 0);
+        return mOne[0] & 0xFF;
+    }
+
+    @Override // FilterInputStream
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if (n > 0)
+            mCtr.update(b, off, n, b, off);
+        return n;
+    }
+
+    @Override // FilterInputStream
+    public long skip(long n) throws IOException {
+        // Skipped bytes still have to consume keystream
+        if (n <= 0)
+            return 0;
+        long skipped = 0;
+        byte[] buf = new byte[(int) Math.min(n, Aes.BUFFER_SIZE)];
+        while (skipped < n) {
+            int got = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+            if (got < 0)
+                break;
+            skipped += got;
+        }
+        return skipped;
+    }
+
+    @Override // FilterInputStream
+    public boolean markSupported() {
+        return false;
+    }
+}
@@ -0,0 +1,58 @@
+package com.cdot.squirrel.crypto;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that encrypts data in counter mode as it is written. Data is processed through
+ * a fixed working buffer, so memory use does not depend on the amount written.
+ * Obtain one from Aes.encryptingStream
+ */
+public class CtrOutputStream extends FilterOutputStream {
+    private final Aes.Ctr mCtr;
+    private final byte[] mBuffer = new byte[Aes.BUFFER_SIZE];
+    // Reference to the key, released on close
+    private Aes.PreparedKey mKey;
+
+    /**
+     * @param out          stream to write encrypted data to
+     * @param key          key to encrypt with. The stream takes over the caller's reference.
+     * @param counterBlock initial counter block
+     */
+    CtrOutputStream(OutputStream out, Aes.PreparedKey key, byte[] counterBlock) {
+        super(out);
+        mKey = key;
+        mCtr = key.makeCtr(counterBlock);
+    }
+
+    @Override // FilterOutputStream
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            if (mKey != null) {
+                mKey.release();
+                mKey = null;
+            }
+        }
+    }
+
+    @Override // FilterOutputStream
+    public void write(int b) throws IOException {
+        mBuffer[0] = (byte) b;
+        mCtr.update(mBuffer, 0, 1, mBuffer, 0);
+        out.write(mBuffer, 0, 1);
+    }
+
+    @Override // FilterOutputStream
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, mBuffer.length);
+            mCtr.update(b, off, n, mBuffer, 0);
+            out.write(mBuffer, 0, n);
+            off += n;
+            len -= n;
+        }
+    }
+}
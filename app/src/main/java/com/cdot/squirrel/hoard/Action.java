@@ -7,10 +7,15 @@ import org.json.JSONObject;
 
 import java.text.DateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
 
 public class Action implements JSONable {
     public static final char SET_ALARM = 'A';
@@ -34,8 +39,7 @@ public class Action implements JSONable {
      */
     public Action(Action proto) {
         this.type = proto.type;
-        if (proto.path != null)
-            path = new HPath(proto.path);
+        path = proto.path;
         time = proto.time;
         if (proto.data != null)
             data = proto.data;
@@ -48,7 +52,7 @@ public class Action implements JSONable {
      */
     public Action(char type, HPath path) {
         this.type = type;
-        this.path = new HPath(path);
+        this.path = path;
         time = NO_TIME;
     }
 
@@ -104,7 +108,63 @@ public class Action implements JSONable {
     };
 
     /**
-     * Compare two actions for equality.
+     * Identity of an action: type, path, data and time, compared exactly. Unlike
+     * Action.equals, NO_TIME only matches NO_TIME, so keys are safe to use in sets and as map
+     * keys. A key is a snapshot, and does not change if the action is modified afterwards.
+     */
+    public static final class Key {
+        private final char mType;
+        private final HPath mPath;
+        private final String mData;
+        private final long mTime;
+        private final int mHash;
+
+        private Key(Action act) {
+            mType = act.type;
+            mPath = act.path;
+            mData = act.data;
+            mTime = act.time;
+            mHash = 31 * act.hashCode() + (int) (mTime ^ (mTime >>> 32));
+        }
+
+        @Override // Object
+        public int hashCode() {
+            return mHash;
+        }
+
+        @Override // Object
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return mHash == k.mHash && mType == k.mType && mTime == k.mTime
+                    && Objects.equals(mPath, k.mPath) && Objects.equals(mData, k.mData);
+        }
+    }
+
+    /**
+     * Get the identity of this action
+     *
+     * @return a key for use in sets and maps
+     */
+    public Key key() {
+        return new Key(this);
+    }
+
+    /**
+     * Hash over the type, path and data. The time is left out, as equals() lets NO_TIME
+     * match any time.
+     */
+    @Override // Object
+    public int hashCode() {
+        return Objects.hash(type, path, data);
+    }
+
+    /**
+     * Compare two actions for equality. Not transitive if NO_TIME is involved; use key()
+     * where that matters.
      * @param b action to compare
      * @return equality
      */
@@ -167,47 +227,81 @@ public class Action implements JSONable {
      * the action objects in a and b are preserved for use here
      */
     static List<Action> mergeActions(List<Action> as, List<Action> bs) {
+        // Where times are equal, b has always come first
+        return mergeActions(Arrays.asList(bs, as));
+    }
 
-        List<Action> a = new ArrayList<>(as);
-        List<Action> b = new ArrayList<>(bs);
-        if (a.size() == 0)
-            return b;
-
-        if (b.size() == 0)
-            return a;
-
-        // Sort streams into time order
-        Collections.sort(a, Action.cmp);
-        Collections.sort(b, Action.cmp);
-
-        Action aact = a.remove(0), bact = b.remove(0);
-        List<Action> c = new ArrayList<>();
-        while (aact != null || bact != null) {
-            if (aact != null && bact != null) {
-                if (aact.equals(bact)) {
-                    // Duplicate, ignore one of them
-                    aact = (a.size() > 0) ? a.remove(0) : null;
-                } else if (aact.time < bact.time) {
-                    c.add(aact);
-                    aact = (a.size() > 0) ? a.remove(0) : null;
-                } else {
-                    c.add(bact);
-                    bact = (b.size() > 0) ? b.remove(0) : null;
+    /**
+     * The next action to be taken from one of the streams being merged
+     */
+    private static class Head {
+        final List<Action> stream;
+        final int order; // position of the stream in the list of streams
+        int next = 0;
+
+        Head(List<Action> stream, int order) {
+            this.stream = stream;
+            this.order = order;
+        }
+
+        Action peek() {
+            return stream.get(next);
+        }
+    }
+
+    /**
+     * Merge any number of action streams in time order, in O(n log k) for n actions in k
+     * streams. Streams that are not already in time order are sorted first. Where actions
+     * have the same time, those from earlier streams come first. Duplicates (same type,
+     * path, data and time) are dropped, keeping the first.
+     *
+     * @param streams the action streams to merge. They are not modified.
+     * @return the merged action stream, sorted in time order. The action objects in the
+     * streams are reused
+     */
+    static List<Action> mergeActions(List<List<Action>> streams) {
+        PriorityQueue<Head> heads = new PriorityQueue<>(Math.max(1, streams.size()), (a, b) -> {
+            int c = Long.compare(a.peek().time, b.peek().time);
+            return c != 0 ? c : Integer.compare(a.order, b.order);
+        });
+        int total = 0;
+        for (List<Action> stream : streams) {
+            if (stream.isEmpty())
+                continue;
+            for (int i = 1; i < stream.size(); i++) {
+                if (stream.get(i - 1).time > stream.get(i).time) {
+                    stream = new ArrayList<>(stream);
+                    // Stable, so actions with the same time keep their order
+                    Collections.sort(stream, Action.cmp);
+                    break;
                 }
-            } else if (aact != null) {
-                c.add(aact);
-                aact = (a.size() > 0) ? a.remove(0) : null;
-            } else {
-                c.add(bact);
-                bact = (b.size() > 0) ? b.remove(0) : null;
             }
+            heads.add(new Head(stream, heads.size()));
+            total += stream.size();
+        }
+
+        List<Action> merged = new ArrayList<>(total);
+        // Actions already output with the current time
+        Set<Key> seen = new HashSet<>();
+        long seenTime = NO_TIME;
+        while (!heads.isEmpty()) {
+            Head h = heads.poll();
+            Action act = h.peek();
+            if (act.time != seenTime) {
+                seen.clear();
+                seenTime = act.time;
+            }
+            if (seen.add(act.key()))
+                merged.add(act);
+            if (++h.next < h.stream.size())
+                heads.add(h);
         }
-        return c;
+        return merged;
     }
 
     @Override
     public void fromJSON(JSONObject job) throws JSONException {
-        path = new HPath(job.getJSONArray("path"));
+        path = HPath.valueOf(job.getJSONArray("path"));
         type = job.getString("type").charAt(0);
         time = job.getLong("time");
         data = null;
@@ -0,0 +1,343 @@
+package com.cdot.squirrel.hoard;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Squashes an action log into a shorter one that replays to the same tree, so that logs and
+ * sync payloads don't grow without bound. The result is the original actions in their original
+ * order, less those whose effect is lost later in the log, with chains of RENAMEs and MOVEs
+ * of a node folded into one action where that is safe. Node times are preserved, so the tree
+ * replayed from the compacted log has the same hash as the tree replayed from the original.
+ * <p>
+ * Actions dropped are:
+ * <ul>
+ * <li>actions that conflict, and so have no effect</li>
+ * <li>EDITs, alarms and constraints that are overridden by a later action on the same node,
+ * or whose node is later deleted</li>
+ * <li>everything done to a node created and then deleted in the log, including its creation
+ * and deletion if they don't change the time of the parent folder</li>
+ * </ul>
+ * The log is assumed to be played into an empty hoard.
+ */
+public class ActionCompactor {
+
+    // What is known about a node from actions later in the log that are kept
+    private static class NodeState {
+        // Lowest time that a later action will leave the node's time at
+        long floor = Long.MIN_VALUE;
+        // Data, alarm and constraints are set later
+        boolean data, alarm, constraints;
+        // Index of the next kept action that touches the node or its subtree
+        int nextTouch = Integer.MAX_VALUE;
+        // Index of the next kept action that creates, deletes, renames or moves the node
+        int nextStructural = -1;
+
+        // Index of the action that created the node, or -1
+        int created = -1;
+        // Index of the action that deleted the node, or -1
+        int deleted = -1;
+        // True if the node was renamed or moved, or if a node was moved into or out of
+        // its subtree
+        boolean relocated;
+        // True if the node is created and deleted in the log, and nothing escapes
+        boolean isTransient;
+        // If transient, true if the creation and deletion must be kept for their effect
+        // on the time of the parent
+        boolean keepEnds;
+
+        void bump(long t) {
+            if (t > floor)
+                floor = t;
+        }
+    }
+
+    private final List<Action> mActions;
+    private final int mCount;
+    // Result, null where an action is dropped
+    private final Action[] mOut;
+    // The target of each action followed by its ancestors, at the time the action was played.
+    // null if the action conflicts.
+    private final HoardNode[][] mChain;
+    // For MOVE, the new parent followed by its ancestors
+    private final HoardNode[][] mToChain;
+    // For kept MOVEs, the floor of the old parent from the actions after it
+    private final long[] mFloorAfter;
+    private final Map<HoardNode, NodeState> mStates = new IdentityHashMap<>();
+    // Index of the next kept structural action of any node
+    private int mNextStructural = Integer.MAX_VALUE;
+
+    private ActionCompactor(List<Action> actions) {
+        mActions = actions;
+        mCount = actions.size();
+        mOut = new Action[mCount];
+        mChain = new HoardNode[mCount][];
+        mToChain = new HoardNode[mCount][];
+        mFloorAfter = new long[mCount];
+    }
+
+    /**
+     * Compact an action log
+     *
+     * @param actions the log, in the order it is played
+     * @return a new list of actions that replays to the same tree
+     */
+    public static List<Action> compact(List<Action> actions) {
+        ActionCompactor c = new ActionCompactor(actions);
+        c.replay();
+        c.findTransients();
+        c.squash();
+        List<Action> result = new ArrayList<>();
+        for (Action act : c.mOut)
+            if (act != null)
+                result.add(act);
+        return result;
+    }
+
+    private NodeState state(HoardNode n) {
+        NodeState s = mStates.get(n);
+        if (s == null) {
+            s = new NodeState();
+            mStates.put(n, s);
+        }
+        return s;
+    }
+
+    private static HoardNode[] chain(HoardNode node, HoardNode parent) {
+        int depth = 1;
+        for (HoardNode n = parent; n != null; n = n.getParent())
+            depth++;
+        HoardNode[] chain = new HoardNode[depth];
+        chain[0] = node;
+        int i = 1;
+        for (HoardNode n = parent; n != null; n = n.getParent())
+            chain[i++] = n;
+        return chain;
+    }
+
+    private static boolean contains(HoardNode[] chain, HoardNode n) {
+        for (HoardNode c : chain)
+            if (c == n)
+                return true;
+        return false;
+    }
+
+    // Play the log into a scratch hoard to find the node each action affects
+    private void replay() {
+        Hoard scratch = new Hoard();
+        final int[] index = new int[1];
+        scratch.addChangeListener((act, parent, node, newParent) -> {
+            int i = index[0];
+            mChain[i] = chain(node, parent);
+            if (newParent != null)
+                mToChain[i] = chain(newParent, newParent.getParent());
+        });
+        for (int i = 0; i < mCount; i++) {
+            Action act = mActions.get(i);
+            index[0] = i;
+            // INSERT replaces any node already there, so neither node can be dropped
+            HoardNode replaced = null;
+            if (act.type == Action.INSERT && !act.path.isEmpty()) {
+                HoardNode parent = scratch.getNode(act.path.parent());
+                if (parent instanceof Fork)
+                    replaced = ((Fork) parent).getChildByName(act.path.getName());
+            }
+            try {
+                scratch.playAction(act, false);
+            } catch (Hoard.ConflictException ignore) {
+                // Dropped
+                continue;
+            }
+            if (replaced != null) {
+                state(replaced).relocated = true;
+                state(mChain[i][0]).relocated = true;
+            }
+        }
+    }
+
+    private void findTransients() {
+        for (int i = 0; i < mCount; i++) {
+            if (mChain[i] == null)
+                continue;
+            Action act = mActions.get(i);
+            HoardNode node = mChain[i][0];
+            switch (act.type) {
+                case Action.NEW:
+                case Action.INSERT:
+                    state(node).created = i;
+                    break;
+                case Action.DELETE:
+                    state(node).deleted = i;
+                    break;
+                case Action.RENAME:
+                    state(node).relocated = true;
+                    break;
+                case Action.MOVE:
+                    // Nodes that lose or gain a subtree
+                    for (HoardNode n : mChain[i])
+                        if (!contains(mToChain[i], n))
+                            state(n).relocated = true;
+                    for (HoardNode n : mToChain[i])
+                        if (!contains(mChain[i], n))
+                            state(n).relocated = true;
+                    break;
+            }
+        }
+        for (NodeState s : mStates.values())
+            s.isTransient = s.created >= 0 && s.deleted >= 0 && !s.relocated;
+    }
+
+    // Decide which actions to keep, working back from the end of the log
+    private void squash() {
+        for (int i = mCount - 1; i >= 0; i--) {
+            HoardNode[] chain = mChain[i];
+            if (chain == null)
+                continue;
+            Action act = mActions.get(i);
+            HoardNode node = chain[0];
+            NodeState ns = state(node);
+
+            // Find the outermost transient node this action is inside
+            NodeState ts = null;
+            for (int j = chain.length - 1; j >= 0 && ts == null; j--) {
+                NodeState s = mStates.get(chain[j]);
+                if (s != null && s.isTransient)
+                    ts = s;
+            }
+            if (ts != null) {
+                if (ts == ns && i == ns.deleted) {
+                    NodeState ps = state(chain[1]);
+                    long tNew = mActions.get(ns.created).time;
+                    ns.keepEnds = ps.floor < Math.max(act.time, tNew);
+                    if (ns.keepEnds) {
+                        ps.bump(act.time);
+                        keep(i, act, true);
+                    }
+                } else if (ts == ns && i == ns.created && ns.keepEnds) {
+                    state(chain[1]).bump(act.time);
+                    keep(i, act, true);
+                }
+                continue;
+            }
+
+            switch (act.type) {
+                case Action.EDIT:
+                    if (ns.data && act.time <= ns.floor)
+                        continue;
+                    ns.data = true;
+                    ns.bump(act.time);
+                    keep(i, act, false);
+                    break;
+
+                case Action.SET_ALARM:
+                case Action.CANCEL_ALARM:
+                    if (ns.alarm)
+                        continue;
+                    ns.alarm = true;
+                    ns.floor = Long.MAX_VALUE;
+                    // CANCEL_ALARM is the same as a set with null data, but can't be undone
+                    // if there is no alarm to cancel, which there may not be when earlier
+                    // actions are dropped
+                    if (act.type == Action.CANCEL_ALARM)
+                        act = new Action(Action.SET_ALARM, act.path, act.time, null);
+                    keep(i, act, false);
+                    break;
+
+                case Action.CONSTRAIN:
+                    if (ns.constraints)
+                        continue;
+                    ns.constraints = true;
+                    ns.floor = Long.MAX_VALUE;
+                    keep(i, act, false);
+                    break;
+
+                case Action.NEW:
+                case Action.INSERT:
+                    state(chain[1]).bump(act.time);
+                    keep(i, act, true);
+                    break;
+
+                case Action.DELETE:
+                    state(chain[1]).bump(act.time);
+                    // Nothing done to the node before this matters
+                    ns.data = ns.alarm = ns.constraints = true;
+                    ns.floor = Long.MAX_VALUE;
+                    keep(i, act, true);
+                    break;
+
+                case Action.RENAME:
+                    if (canFold(i, ns, Action.RENAME) && !act.path.getName().equals(mOut[ns.nextStructural].data)) {
+                        // Rename straight to the final name
+                        Action next = mOut[ns.nextStructural];
+                        mOut[ns.nextStructural] = new Action(Action.RENAME, act.path, next.time, next.data);
+                        continue;
+                    }
+                    ns.floor = Long.MAX_VALUE;
+                    keep(i, act, true);
+                    break;
+
+                case Action.MOVE:
+                    if (canFold(i, ns, Action.MOVE) && foldMove(i, act, ns))
+                        continue;
+                    NodeState from = state(chain[1]);
+                    mFloorAfter[i] = from.floor;
+                    from.bump(act.time);
+                    state(mToChain[i][0]).bump(act.time);
+                    keep(i, act, true);
+                    break;
+            }
+        }
+    }
+
+    // Can the action at i be folded into the next structural action of its node, which is
+    // of the given type?
+    private boolean canFold(int i, NodeState ns, char type) {
+        int j = ns.nextStructural;
+        // Nothing may be created, deleted, renamed or moved in between, and the node and its
+        // subtree must not be touched, so nothing in between depends on where the node is
+        return j >= 0 && j == mNextStructural && mOut[j].type == type && ns.nextTouch == j
+                && mChain[j][0] == mChain[i][0];
+    }
+
+    // Try to fold the MOVE at i (from P1 to P2) into the next MOVE of the node (from P2 to P3)
+    private boolean foldMove(int i, Action act, NodeState ns) {
+        int j = ns.nextStructural;
+        Action next = mOut[j];
+        HoardNode p1 = mChain[i][1], p2 = mToChain[i][0], p3 = mToChain[j][0];
+        if (p3 == p1)
+            // Would be a move to where it already is
+            return false;
+        NodeState s1 = state(p1);
+        long t = Math.max(act.time, next.time);
+        // P2 must not be touched in between, and the bumps to its time from both moves
+        // must have no effect
+        if (state(p2).nextTouch != j || mFloorAfter[j] < t)
+            return false;
+        // P1 must not be touched in between, and moving its bump from act.time to next.time
+        // must have no effect
+        if (s1.nextTouch < j || (act.time != next.time && s1.floor < t))
+            return false;
+        mOut[j] = new Action(Action.MOVE, act.path, next.time, next.data);
+        mChain[j] = mChain[i];
+        mFloorAfter[j] = s1.floor;
+        s1.bump(next.time);
+        for (HoardNode n : mChain[i])
+            state(n).nextTouch = j;
+        return true;
+    }
+
+    private void keep(int i, Action act, boolean structural) {
+        mOut[i] = act;
+        for (HoardNode n : mChain[i])
+            state(n).nextTouch = i;
+        if (mToChain[i] != null)
+            for (HoardNode n : mToChain[i])
+                state(n).nextTouch = i;
+        if (structural) {
+            mNextStructural = i;
+            state(mChain[i][0]).nextStructural = i;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.cdot.squirrel.hoard;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Index of the actions in a log, for checking in constant time whether an incoming action
+ * is already there, such as when syncing with another copy of the log. Actions are matched
+ * by Action.key().
+ */
+public class ActionIndex {
+    private final Set<Action.Key> mKeys;
+
+    /**
+     * Construct an empty index
+     */
+    public ActionIndex() {
+        mKeys = new HashSet<>();
+    }
+
+    /**
+     * Construct an index of existing actions
+     *
+     * @param actions actions to index
+     */
+    public ActionIndex(Collection<Action> actions) {
+        mKeys = new HashSet<>(Math.max(16, (int) (actions.size() / .75f) + 1));
+        for (Action act : actions)
+            mKeys.add(act.key());
+    }
+
+    /**
+     * @param act action to look for
+     * @return true if the action is in the index
+     */
+    public boolean contains(Action act) {
+        return mKeys.contains(act.key());
+    }
+
+    /**
+     * Add an action to the index
+     *
+     * @param act action to add
+     * @return true if the action was not already in the index
+     */
+    public boolean add(Action act) {
+        return mKeys.add(act.key());
+    }
+
+    /**
+     * Add incoming actions to the index
+     *
+     * @param incoming actions to add
+     * @return the incoming actions that were not already in the index, in their original order
+     */
+    public List<Action> addAll(List<Action> incoming) {
+        List<Action> added = new ArrayList<>();
+        for (Action act : incoming)
+            if (mKeys.add(act.key()))
+                added.add(act);
+        return added;
+    }
+
+    /**
+     * @return the number of actions in the index
+     */
+    public int size() {
+        return mKeys.size();
+    }
+}
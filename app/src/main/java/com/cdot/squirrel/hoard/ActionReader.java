@@ -0,0 +1,140 @@
+package com.cdot.squirrel.hoard;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a stream of actions written by ActionWriter
+ */
+public class ActionReader implements Closeable {
+    // Longest string that will be read. Anything longer is taken to be a corrupt stream, rather
+    // than trying to allocate a buffer for it.
+    static final int MAX_STRING = 1 << 24;
+
+    private final InputStream mIn;
+    private final List<HPath> mPaths = new ArrayList<>();
+    private final List<String> mNames = new ArrayList<>();
+    private long mLastTime = 0;
+    private byte[] mBuffer = new byte[256];
+
+    /**
+     * Construct, and read the stream header
+     *
+     * @param in stream to read from
+     * @throws IOException if the header is missing or the version is not supported
+     */
+    public ActionReader(InputStream in) throws IOException {
+        mIn = new BufferedInputStream(in);
+        for (byte b : ActionWriter.MAGIC)
+            if (mIn.read() != b)
+                throw new IOException("Not an action stream");
+        int version = mIn.read();
+        if (version != ActionWriter.VERSION)
+            throw new IOException("Unsupported action stream version " + version);
+        mPaths.add(HPath.ROOT);
+    }
+
+    /**
+     * Read the next action from the stream
+     *
+     * @return the action, or null at the end of the stream
+     * @throws IOException if the stream is truncated or corrupt
+     */
+    public Action read() throws IOException {
+        int type = mIn.read();
+        if (type < 0)
+            return null;
+        long zz = readVarint();
+        mLastTime += (zz >>> 1) ^ -(zz & 1);
+        HPath path = readPath();
+        int len = readLength(MAX_STRING + 1);
+        String data = (len == 0) ? null : readString(len - 1);
+        return new Action((char) type, path, mLastTime, data);
+    }
+
+    /**
+     * Read all remaining actions from the stream
+     *
+     * @return list of actions read
+     * @throws IOException if the stream is truncated or corrupt
+     */
+    public List<Action> readAll() throws IOException {
+        List<Action> actions = new ArrayList<>();
+        Action act;
+        while ((act = read()) != null)
+            actions.add(act);
+        return actions;
+    }
+
+    private HPath readPath() throws IOException {
+        int id = readReference(mPaths.size(), "path");
+        if (id < mPaths.size())
+            return mPaths.get(id);
+        HPath parent = readPath();
+        HPath path = parent.child(readName());
+        mPaths.add(path);
+        return path;
+    }
+
+    private String readName() throws IOException {
+        int id = readReference(mNames.size(), "name");
+        if (id < mNames.size())
+            return mNames.get(id);
+        String name = readString(readLength(MAX_STRING));
+        mNames.add(name);
+        return name;
+    }
+
+    private String readString(int len) throws IOException {
+        if (len > mBuffer.length)
+            mBuffer = new byte[Math.max(len, 2 * mBuffer.length)];
+        int done = 0;
+        while (done < len) {
+            int n = mIn.read(mBuffer, done, len - done);
+            if (n < 0)
+                throw new EOFException();
+            done += n;
+        }
+        return new String(mBuffer, 0, len, StandardCharsets.UTF_8);
+    }
+
+    // Read a dictionary id, which must refer to an existing entry or be the next new one
+    private int readReference(int size, String what) throws IOException {
+        long id = readVarint();
+        if (id < 0 || id > size)
+            throw new IOException("Bad " + what + " reference " + id);
+        return (int) id;
+    }
+
+    // Read a length, checking it is in range before anything is allocated for it
+    private int readLength(int max) throws IOException {
+        long len = readVarint();
+        if (len < 0 || len > max)
+            throw new IOException("Bad length " + len);
+        return (int) len;
+    }
+
+    private long readVarint() throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = mIn.read();
+            if (b < 0)
+                throw new EOFException();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+        throw new IOException("Bad varint");
+    }
+
+    @Override // Closeable
+    public void close() throws IOException {
+        mIn.close();
+    }
+}
@@ -0,0 +1,106 @@
+package com.cdot.squirrel.hoard;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Index of the nodes in a tree that have alarms, ordered by when they are due, so that
+ * alarms can be checked without visiting every node. Entries are keyed by node, so nodes
+ * can be renamed or moved without updating the index; only adding and removing subtrees,
+ * and changes to alarms, need to be reported to it.
+ */
+class AlarmIndex {
+
+    private static class Entry {
+        final HoardNode node;
+        final long due;
+        // Order of alarms due at the same time
+        final long serial;
+
+        Entry(HoardNode node, long due, long serial) {
+            this.node = node;
+            this.due = due;
+            this.serial = serial;
+        }
+    }
+
+    // Entries ordered by due time
+    private final TreeSet<Entry> mQueue = new TreeSet<>((a, b) -> a.due != b.due
+            ? Long.compare(a.due, b.due) : Long.compare(a.serial, b.serial));
+    private final Map<HoardNode, Entry> mEntries = new IdentityHashMap<>();
+    private long mSerial = 0;
+
+    /**
+     * Forget all alarms
+     */
+    void clear() {
+        mQueue.clear();
+        mEntries.clear();
+    }
+
+    /**
+     * Update the entry for a node after its alarm has been set, changed or cancelled
+     *
+     * @param node the node
+     */
+    void update(HoardNode node) {
+        Entry e = mEntries.remove(node);
+        if (e != null)
+            mQueue.remove(e);
+        Alarm alarm = node.getAlarm();
+        // An alarm due at 0 never rings
+        if (alarm != null && alarm.due > 0) {
+            e = new Entry(node, alarm.due, mSerial++);
+            mEntries.put(node, e);
+            mQueue.add(e);
+        }
+    }
+
+    /**
+     * Add the alarms in a subtree added to the tree
+     *
+     * @param node root of the subtree
+     */
+    void add(HoardNode node) {
+        update(node);
+        if (node instanceof Fork)
+            for (HoardNode child : ((Fork) node).getChildren().values())
+                add(child);
+    }
+
+    /**
+     * Remove the alarms in a subtree removed from the tree. Only the nodes with alarms are
+     * visited, not the whole subtree.
+     *
+     * @param node root of the subtree
+     */
+    void remove(HoardNode node) {
+        Iterator<Map.Entry<HoardNode, Entry>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<HoardNode, Entry> me = it.next();
+            for (HoardNode n = me.getKey(); n != null; n = n.getParent()) {
+                if (n == node) {
+                    mQueue.remove(me.getValue());
+                    it.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the node whose alarm is due next, or null if there are no alarms
+     */
+    HoardNode first() {
+        return mQueue.isEmpty() ? null : mQueue.first().node;
+    }
+
+    /**
+     * @return the time the next alarm is due, or 0 if there are no alarms
+     */
+    long firstDue() {
+        return mQueue.isEmpty() ? 0 : mQueue.first().due;
+    }
+}
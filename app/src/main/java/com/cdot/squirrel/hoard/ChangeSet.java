@@ -0,0 +1,215 @@
+package com.cdot.squirrel.hoard;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The net effect on the tree of a batch of actions, as given to a Hoard.BatchListener.
+ * Changes are recorded per node and coalesced, so a node that is edited many times is
+ * reported once, a node that is created and then deleted is not reported at all, and nothing
+ * is reported inside a subtree that was added or removed as a whole. Lists of nodes are in
+ * the order in which each node was first changed.
+ * <p>
+ * A listener updating a view of the tree should apply moves first, then removals, then
+ * additions, and then changes, as a node may have been moved out of a subtree that was
+ * removed, or into one that was added.
+ */
+public class ChangeSet {
+    // Flags recorded for each node
+    private static final int ADDED = 1;
+    private static final int REMOVED = 2;
+    private static final int MOVED = 4;
+    private static final int CHANGED = 8;
+
+    private final Map<HoardNode, Integer> mFlags = new IdentityHashMap<>();
+    private final List<HoardNode> mOrder = new ArrayList<>();
+    // Parent a removed node was removed from
+    private final Map<HoardNode, HoardNode> mRemovedFrom = new IdentityHashMap<>();
+    // Parent a moved node was first moved from
+    private final Map<HoardNode, HoardNode> mMovedFrom = new IdentityHashMap<>();
+    private int mActions = 0;
+
+    // Net effect, set by close()
+    private List<HoardNode> mAdded, mRemoved, mMoved, mChanged;
+
+    /**
+     * Record the effect of an action, as reported to ChangeListener.actionPlayed
+     */
+    void record(Action act, HoardNode parent, HoardNode node, HoardNode newParent) {
+        mActions++;
+        switch (act.type) {
+            case Action.NEW:
+            case Action.INSERT:
+                flag(node, ADDED);
+                flag(parent, CHANGED);
+                break;
+            case Action.DELETE:
+                mRemovedFrom.put(node, parent);
+                flag(node, REMOVED);
+                flag(parent, CHANGED);
+                break;
+            case Action.MOVE:
+                if (isInsideAdded(parent))
+                    // Listeners never saw it where it was
+                    flag(node, ADDED);
+                else {
+                    if (!mMovedFrom.containsKey(node))
+                        mMovedFrom.put(node, parent);
+                    flag(node, MOVED);
+                }
+                flag(parent, CHANGED);
+                flag(newParent, CHANGED);
+                break;
+            default:
+                flag(node, CHANGED);
+        }
+    }
+
+    /**
+     * Record a node replaced by INSERT, which removes it from the tree without an action
+     */
+    void replaced(HoardNode node, HoardNode parent) {
+        mRemovedFrom.put(node, parent);
+        flag(node, REMOVED);
+    }
+
+    private void flag(HoardNode node, int flag) {
+        Integer f = mFlags.get(node);
+        if (f == null) {
+            mOrder.add(node);
+            f = 0;
+        }
+        if ((f & ADDED) != 0) {
+            // A node added in this batch is reported as it is at the end
+            if (flag == REMOVED)
+                f = REMOVED | ADDED;
+        } else if (flag == REMOVED || flag == ADDED)
+            f = flag;
+        else
+            f |= flag;
+        mFlags.put(node, f);
+    }
+
+    // Is the node, or one of its ancestors, added in this batch?
+    private boolean isInsideAdded(HoardNode node) {
+        for (HoardNode n = node; n != null; n = n.getParent()) {
+            Integer f = mFlags.get(n);
+            if (f != null && (f & ADDED) != 0)
+                return true;
+        }
+        return false;
+    }
+
+    // Is the node in the tree, and not inside a subtree that was added?
+    private boolean isLive(HoardNode node, HoardNode root) {
+        HoardNode last = null;
+        for (HoardNode n = node; n != null; n = n.getParent()) {
+            Integer f = mFlags.get(n);
+            if (f != null && (f & ADDED) != 0)
+                return false;
+            last = n;
+        }
+        return last == root;
+    }
+
+    // Where listeners last saw a node
+    private HoardNode origin(HoardNode node) {
+        HoardNode from = mMovedFrom.get(node);
+        return from != null ? from : mRemovedFrom.get(node);
+    }
+
+    /**
+     * Work out the net effect of the actions recorded
+     *
+     * @param root root of the tree the actions were played into
+     */
+    void close(HoardNode root) {
+        mAdded = new ArrayList<>();
+        mRemoved = new ArrayList<>();
+        mMoved = new ArrayList<>();
+        mChanged = new ArrayList<>();
+        for (HoardNode node : mOrder) {
+            int f = mFlags.get(node);
+            if ((f & REMOVED) != 0) {
+                // Ignore nodes added in this batch, and those under another node removed
+                if (f == REMOVED && isLive(origin(node), root))
+                    mRemoved.add(node);
+                continue;
+            }
+            if (node != root && !isLive(node.getParent(), root)) {
+                // Moved into a subtree that was removed or added
+                if ((f & MOVED) != 0 && isLive(origin(node), root))
+                    mRemoved.add(node);
+                continue;
+            }
+            if (f == ADDED)
+                mAdded.add(node);
+            else {
+                if ((f & MOVED) != 0) {
+                    if (mMovedFrom.get(node) != node.getParent())
+                        mMoved.add(node);
+                    else
+                        // Moved back where it was
+                        f |= CHANGED;
+                }
+                if ((f & CHANGED) != 0)
+                    mChanged.add(node);
+            }
+        }
+    }
+
+    /**
+     * @return the number of actions that were played
+     */
+    public int getActionCount() {
+        return mActions;
+    }
+
+    /**
+     * @return true if the actions had no net effect on the tree
+     */
+    public boolean isEmpty() {
+        return mAdded.isEmpty() && mRemoved.isEmpty() && mMoved.isEmpty() && mChanged.isEmpty();
+    }
+
+    /**
+     * @return nodes that were added, each with its subtree
+     */
+    public List<HoardNode> getAdded() {
+        return Collections.unmodifiableList(mAdded);
+    }
+
+    /**
+     * @return nodes that were removed, each with its subtree. Use getRemovedFrom() to find
+     * where they were.
+     */
+    public List<HoardNode> getRemoved() {
+        return Collections.unmodifiableList(mRemoved);
+    }
+
+    /**
+     * @return nodes that are now in a different folder. They may also be in getChanged().
+     */
+    public List<HoardNode> getMoved() {
+        return Collections.unmodifiableList(mMoved);
+    }
+
+    /**
+     * @return nodes still in the tree whose name, data, time, alarm or constraints may have
+     * changed, including folders that gained or lost children
+     */
+    public List<HoardNode> getChanged() {
+        return Collections.unmodifiableList(mChanged);
+    }
+
+    /**
+     * @param node a node from getRemoved()
+     * @return the folder it was in before the actions were played
+     */
+    public HoardNode getRemovedFrom(HoardNode node) {
+        return origin(node);
+    }
+}
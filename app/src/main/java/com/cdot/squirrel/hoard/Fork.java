@@ -67,46 +67,32 @@ public class Fork extends HoardNode {
      * @return the node, or null if not found
      */
     public HoardNode getByPath(HPath path) {
-        HoardNode node = this;
-        for (String pel : path) {
-            if (node == null || node instanceof Leaf)
-                break;
-            node = ((Fork) node).getChildByName(pel);
-        }
-        return node;
-    }
-
-    @Override // HoardNode
-    HPath makePath(HoardNode find, HPath pathHere) {
-        if (this == find)
-            return pathHere;
-        for (HoardNode child : branches.values()) {
-            HPath found = child.makePath(find, pathHere.with(child.mName));
-            if (found != null)
-                return found;
-        }
-        return null;
+        if (path.isEmpty())
+            return this;
+        HoardNode node = getByPath(path.parent());
+        if (node == null || node instanceof Leaf)
+            return node;
+        return ((Fork) node).getChildByName(path.getName());
     }
 
     @Override // HoardNode
     public Fork getParentOf(HoardNode n) {
-        for (HoardNode child : branches.values()) {
-            if (n == child)
-                return this;
-            Fork f = child.getParentOf(n);
-            if (f != null)
-                return f;
-        }
-        return null;
+        Fork parent = n.getParent();
+        return isAncestorOf(parent) ? parent : null;
     }
 
     /**
-     * Add a new child to the end of the branches of this node
+     * Add a new child to the end of the branches of this node. Any child with the same name
+     * is replaced.
      *
      * @param child new child to add
      */
     void addChild(HoardNode child) {
-        branches.put(child.mName, child);
+        HoardNode old = branches.put(child.mName, child);
+        if (old != null && old != child)
+            old.setParent(null);
+        child.setParent(this);
+        invalidateHash();
     }
 
     /**
@@ -115,7 +101,18 @@ public class Fork extends HoardNode {
      * @param child node to remove
      */
     void removeChild(HoardNode child) {
+        invalidateHash();
         branches.remove(child.mName);
+        child.setParent(null);
+    }
+
+    @Override // HoardNode
+    protected long computeHash() {
+        long h = hash(super.computeHash(), 'F');
+        // Children are sorted by name, so the order is the same in identical subtrees
+        for (HoardNode child : branches.values())
+            h = hash(h, child.getHash());
+        return h;
     }
 
     @Override
@@ -172,7 +169,7 @@ public class Fork extends HoardNode {
                 kid = new Leaf(name, getHoard(), child);
             else
                 kid = new Fork(name, getHoard(), child);
-            branches.put(name, kid);
+            addChild(kid);
         }
     }
 
@@ -182,30 +179,42 @@ public class Fork extends HoardNode {
             // TODO
             return;
         }
-        List<HPath> matched = new ArrayList<>();
+        if (getHash() == b.getHash())
+            // Identical subtrees
+            return;
         Fork fb = (Fork) b;
-        for (HoardNode subnode : branches.values()) {
-            HPath subpath = path.with(subnode.mName);
-            HoardNode fbSubnode =fb.getChildByName(subnode.mName);
-            if (fbSubnode != null) {
-                matched.add(subpath);
-                subnode.diff(subpath, fbSubnode, differ);
-            } else {
+        // Walk the two sorted sets of children together. Nodes only in b are reported after
+        // the rest, so deletions come before creations.
+        List<HoardNode> added = new ArrayList<>();
+        Iterator<HoardNode> ia = branches.values().iterator();
+        Iterator<HoardNode> ib = fb.branches.values().iterator();
+        HoardNode na = ia.hasNext() ? ia.next() : null;
+        HoardNode nb = ib.hasNext() ? ib.next() : null;
+        while (na != null || nb != null) {
+            int cmp = (na == null) ? 1 : (nb == null) ? -1 : na.mName.compareTo(nb.mName);
+            if (cmp == 0) {
+                if (na.getHash() != nb.getHash())
+                    na.diff(path.child(na.mName), nb, differ);
+                na = ia.hasNext() ? ia.next() : null;
+                nb = ib.hasNext() ? ib.next() : null;
+            } else if (cmp < 0) {
                 // HoardNode is not present in b, delete it
-                differ.difference(new Action(Action.DELETE, subpath), this, b);
+                differ.difference(new Action(Action.DELETE, path.child(na.mName)), this, b);
+                na = ia.hasNext() ? ia.next() : null;
+            } else {
+                added.add(nb);
+                nb = ib.hasNext() ? ib.next() : null;
             }
         }
-        for (HoardNode subnode : fb.branches.values()) {
-            HPath subpath = path.with(subnode.mName);
-            if (matched.indexOf(subpath) < 0) {
-                // HoardNode in b is new
-                if (subnode instanceof Fork)
-                    // INSERT entire subtree
-                    differ.difference(new Action(Action.INSERT, subpath, subnode.toJSON().toString()), this, b);
-                else
-                    // Construct using NEW
-                    differ.difference(new Action(Action.NEW, subpath, ((Leaf)subnode).getData()), this, b);
-            }
+        for (HoardNode subnode : added) {
+            // HoardNode in b is new
+            HPath subpath = path.child(subnode.mName);
+            if (subnode instanceof Fork)
+                // INSERT entire subtree
+                differ.difference(new Action(Action.INSERT, subpath, subnode.toJSON().toString()), this, b);
+            else
+                // Construct using NEW
+                differ.difference(new Action(Action.NEW, subpath, ((Leaf)subnode).getData()), this, b);
         }
         super.diff(path, b, differ);
     }
@@ -220,13 +229,5 @@ public class Fork extends HoardNode {
         }
         return true;
     }
-
-    @Override
-    void checkAlarms(HPath path, long now, Alarm.Ringer ring) {
-        super.checkAlarms(path, now, ring);
-        for (HoardNode c : branches.values()) {
-            c.checkAlarms(path.with(c.mName), now, ring);
-        }
-    }
 }
 
@@ -5,29 +5,56 @@ import androidx.annotation.NonNull;
 import org.json.JSONArray;
 import org.json.JSONException;
 
-import java.util.ArrayList;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.WeakHashMap;
 
-public class HPath extends ArrayList<String> {
+/**
+ * Path to a node in a hoard tree. Paths are immutable, and share structure; each path is
+ * a parent path plus a name. Paths are interned, so there is only ever one copy of each
+ * path and with(), parent() and equals() are cheap. The public constructors make a copy that
+ * is equal to, but not the same object as, the interned path; prefer valueOf().
+ */
+public final class HPath implements Iterable<String> {
     public static final String PATH_SEPARATOR = "↘";
 
-    /**
-     * Parse the string on the PATH_SEPARATOR and add the components to this path
-     *
-     * @param s a path string
-     */
-    private void addBits(String s) {
-        int i;
-        while ((i = s.indexOf(PATH_SEPARATOR)) >= 0) {
-            add(s.substring(0, i));
-            s = s.substring(i + 1);
+    // The empty path
+    public static final HPath ROOT = new HPath(null, null, true);
+
+    // Parent path, always interned. null for the empty path.
+    private final HPath mParent;
+    // Last name on the path
+    private final String mName;
+    // Number of names on the path
+    private final int mSize;
+    private final int mHash;
+    // True if this is the shared copy of the path
+    private final boolean mInterned;
+    // Interned children of this path, keyed by name. Entries are dropped when the child is
+    // no longer used.
+    private Map<String, WeakReference<HPath>> mChildren;
+
+    private HPath(HPath parent, String name, boolean interned) {
+        mParent = parent;
+        mName = name;
+        mInterned = interned;
+        if (parent == null) {
+            mSize = 0;
+            mHash = 1;
+        } else {
+            mSize = parent.mSize + 1;
+            mHash = 31 * parent.mHash + name.hashCode();
         }
-        add(s);
     }
 
     /**
      * Construct an empty path
      */
     public HPath() {
+        this(null, null, false);
     }
 
     /**
@@ -36,7 +63,7 @@ public class HPath extends ArrayList<String> {
      * @param s a path string
      */
     public HPath(String s) {
-        addBits(s);
+        this(valueOf(s));
     }
 
     /**
@@ -45,7 +72,7 @@ public class HPath extends ArrayList<String> {
      * @param p path to copy
      */
     public HPath(HPath p) {
-        addAll(p);
+        this(p.mParent, p.mName, false);
     }
 
     /**
@@ -54,8 +81,41 @@ public class HPath extends ArrayList<String> {
      * @param arr array to load
      */
     public HPath(JSONArray arr) throws JSONException {
+        this(valueOf(arr));
+    }
+
+    /**
+     * Get the interned path for a path string
+     *
+     * @param s a path string
+     * @return the shared path
+     */
+    public static HPath valueOf(String s) {
+        return ROOT.with(s);
+    }
+
+    /**
+     * Get the interned path for a JSON array
+     *
+     * @param arr array to load
+     * @return the shared path
+     */
+    public static HPath valueOf(JSONArray arr) throws JSONException {
+        HPath p = ROOT;
         for (int i = 0; i < arr.length(); i++)
-            add(arr.getString(i));
+            p = p.child(arr.getString(i));
+        return p;
+    }
+
+    /**
+     * Get the shared copy of this path
+     *
+     * @return the interned path equal to this path
+     */
+    public HPath intern() {
+        if (mInterned)
+            return this;
+        return mParent == null ? ROOT : mParent.child(mName);
     }
 
     /**
@@ -65,47 +125,140 @@ public class HPath extends ArrayList<String> {
      */
     public JSONArray toJSON() {
         JSONArray arr = new JSONArray();
-        for (int i = 0; i < size(); i++)
-            arr.put(get(i));
+        for (String name : names())
+            arr.put(name);
         return arr;
     }
 
+    /**
+     * Get the path with a single name appended to this path. The name is not split on
+     * PATH_SEPARATOR.
+     *
+     * @param name name to append
+     * @return the interned path
+     */
+    public HPath child(String name) {
+        if (!mInterned)
+            return intern().child(name);
+        synchronized (this) {
+            if (mChildren == null)
+                mChildren = new WeakHashMap<>();
+            WeakReference<HPath> ref = mChildren.get(name);
+            HPath p = (ref == null) ? null : ref.get();
+            if (p == null) {
+                p = new HPath(this, name, true);
+                // The key must be the string held by the child, so the entry lives as long as it does
+                mChildren.put(p.mName, new WeakReference<>(p));
+            }
+            return p;
+        }
+    }
+
     /**
      * Create a new path by appending a path component to this path
      *
-     * @param s path component to append
+     * @param s path component to append, split on PATH_SEPARATOR
      * @return new path
      */
     public HPath with(String s) {
-        HPath p = new HPath(this);
-        p.addBits(s);
-        return p;
+        HPath p = this;
+        int i;
+        while ((i = s.indexOf(PATH_SEPARATOR)) >= 0) {
+            p = p.child(s.substring(0, i));
+            s = s.substring(i + PATH_SEPARATOR.length());
+        }
+        return p.child(s);
     }
 
     /**
      * Get the parent path of this path
      *
-     * @return parent path
+     * @return parent path, null if this is the empty path
      */
     public HPath parent() {
-        HPath p = new HPath(this);
-        p.remove(p.size() - 1);
-        return p;
+        return mParent;
+    }
+
+    /**
+     * Get the last name on the path
+     *
+     * @return the name, null if this is the empty path
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return the number of names on the path
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return true if this is the empty path
+     */
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * Get a name from the path
+     *
+     * @param i index of the name, 0 is the name of a child of the root
+     * @return the name
+     */
+    public String get(int i) {
+        if (i < 0 || i >= mSize)
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + mSize);
+        HPath p = this;
+        for (int up = mSize - 1 - i; up > 0; up--)
+            p = p.mParent;
+        return p.mName;
+    }
+
+    /**
+     * Get the names on the path, root first
+     */
+    private String[] names() {
+        String[] names = new String[mSize];
+        HPath p = this;
+        for (int i = mSize - 1; i >= 0; i--) {
+            names[i] = p.mName;
+            p = p.mParent;
+        }
+        return names;
+    }
+
+    @NonNull
+    @Override // Iterable
+    public Iterator<String> iterator() {
+        return Arrays.asList(names()).iterator();
+    }
+
+    @Override // Object
+    public int hashCode() {
+        return mHash;
     }
 
     /**
      * Test path equality
      *
-     * @param oth other path
+     * @param other other path
      * @return true if they are equal
      */
-    boolean equals(HPath oth) {
-        if (size() != oth.size())
+    @Override // Object
+    public boolean equals(Object other) {
+        if (this == other)
+            return true;
+        if (!(other instanceof HPath))
+            return false;
+        HPath oth = (HPath) other;
+        if (mInterned && oth.mInterned)
             return false;
-        for (int i = 0; i < size(); i++)
-            if (!get(i).equals(oth.get(i)))
-                return false;
-        return true;
+        // Parents are always interned, so can be compared by identity
+        return mHash == oth.mHash && mSize == oth.mSize
+                && mParent == oth.mParent && Objects.equals(mName, oth.mName);
     }
 
     /**
@@ -118,11 +271,11 @@ public class HPath extends ArrayList<String> {
     public String toString() {
         StringBuilder s = new StringBuilder();
         boolean sep = false;
-        for (String p : this) {
+        for (String p : names()) {
             if (sep) s.append(PATH_SEPARATOR);
             s.append(p);
             sep = true;
         }
         return s.toString();
     }
-}
\ No newline at end of file
+}
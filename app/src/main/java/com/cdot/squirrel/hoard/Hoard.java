@@ -4,30 +4,51 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Stack;
+import java.util.Map;
 
 /**
  * A hoard consists of a tree structure, and a history of timestamped actions that have
  * modified the tree since it was constructed. So a new, empty hoard consists of an empty
  * tree and an empty history. As actions are played into the hoard, they are added (with their
  * undo) to the history as ActionPairs.
+ * <p>
+ * A hoard is saved as a snapshot of the tree at some point in time, plus the tail of actions
+ * played since then:
+ * <pre>{ "tree": { "time": ..., "data": { ... } }, "actions": [ ... ] }</pre>
+ * Loading parses the snapshot and replays the tail. When the tail gets longer than
+ * sMaxTail, saving takes a new snapshot and empties the tail. Older saves have no "tree", and
+ * the actions are the entire history.
  */
 public class Hoard {
 
     /**
-     * A redo/undo pair of actions
+     * A redo/undo pair of actions, or a group of them played in a transaction
      */
     static class Event {
         Action undo;
         Action redo;
+        // Large undo data is moved out of undo.data by UndoHistory, into one of these
+        byte[] packed;
+        File spill;
+        // For a transaction, the events in the order they were played. undo and redo are null.
+        List<Event> group;
 
         Event(Action redo, Action undo) {
             this.redo = redo;
             this.undo = undo;
         }
+
+        Event(List<Event> group) {
+            this.group = group;
+        }
     }
 
     /**
@@ -54,31 +75,71 @@ public class Hoard {
         }
     }
 
-    // History of Event reflecting actions played into this hoard since it was created
-    private Stack<Event> mHistory;
+    // History of Event reflecting actions played into this hoard since it was created. Older
+    // events are forgotten when it gets too big.
+    private UndoHistory mHistory;
 
     // The toolbar of the tree representation of the hoard
     private Fork mTree;
 
+    // Saved snapshot of the tree as JSON text, null for an empty tree. It is kept as text, as
+    // a JSONObject would be a second, much bigger, copy of the tree.
+    private String mSnapshot;
+
+    // Actions played into the tree since mSnapshot was taken
+    private List<Action> mTail;
+
+    // Number of actions in the tail above which toJSON() takes a new snapshot
+    static int sMaxTail = 1000;
+
+    // Number of actions played at once by Hoard(Reader)
+    static int sLoadBatch = 1000;
+
+    // Events and actions played in the current transaction, null if there isn't one
+    private List<Event> mGroup;
+    private List<Action> mGroupPlayed;
+    // Depth of nested transactions
+    private int mGroupDepth = 0;
+
+    // Changes not yet given to batch listeners, null if there are none
+    private ChangeSet mPending;
+    // Number of actions after which pending changes are given to batch listeners, 0 to wait
+    // for the end of the batch
+    private int mBatchSize = 0;
+
+    // Index of alarms in the tree, built when first needed
+    private AlarmIndex mAlarms;
+
     /**
      * Construct a new, empty hoard
      */
     public Hoard() {
-        mHistory = new Stack<>();
+        mHistory = new UndoHistory();
         mTree = new Fork(null, this); // root node
+        mTail = new ArrayList<>();
     }
 
     /**
-     * Construct a hoard using JSON data
+     * Construct a hoard using JSON data, as saved by toJSON()
      */
     public Hoard(JSONObject job) {
         this();
+        if (job.has("tree")) {
+            try {
+                JSONObject tree = job.getJSONObject("tree");
+                mTree.fromJSON(tree);
+                mSnapshot = tree.toString();
+            } catch (JSONException je) {
+                throw new Error("JSON exception during construction " + je);
+            }
+        }
         if (job.has("actions")) {
             try {
                 JSONArray jarr = job.getJSONArray("actions");
+                Map<HPath, Fork> forks = new HashMap<>();
                 for (int i = 0; i < jarr.length(); i++) {
                     JSONObject ja = jarr.getJSONObject(i);
-                    playAction(new Action(ja), false);
+                    play(new Action(ja), false, forks);
                 }
             } catch (JSONException je) {
                 throw new Error("JSON exception during construction " + je);
@@ -86,26 +147,252 @@ public class Hoard {
                 ce.printStackTrace();
                 throw new Error("Conflict during construction " + ce);
             }
-        } else
+        } else if (mSnapshot == null)
             throw new Error("Unsupported hoard format");
     }
 
     /**
-     * Construct from a list of actions. Actions are NOT recorded in the history
+     * Construct a hoard by reading JSON text in the form written by write(Writer) or toJSON().
+     * Unlike Hoard(JSONObject), the document is never held in memory; actions are read and
+     * played a batch at a time.
+     *
+     * @param r reader to read from
+     * @throws IOException if the text can't be read or is not a hoard
+     */
+    public Hoard(Reader r) throws IOException {
+        this();
+        read(r, this, sLoadBatch, true, new Loader() {
+            @Override // Loader
+            public void treeLoaded(Hoard hoard) {
+            }
+
+            @Override // Loader
+            public boolean actionsLoaded(List<Action> actions, int total) {
+                List<ConflictException> e = playBatch(actions, false);
+                if (e.size() > 0) {
+                    e.get(0).printStackTrace();
+                    throw new Error("Conflict during construction " + e.get(0));
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Receiver for a hoard as it is read by read(). This allows a hoard to be read on one
+     * thread and used on another, as the reading thread doesn't touch the hoard after passing
+     * it to treeLoaded().
+     */
+    public interface Loader {
+        /**
+         * Called once, when the tree has been read and before any actions are passed to
+         * actionsLoaded
+         *
+         * @param hoard the hoard, with the tree but without the actions that follow it
+         */
+        void treeLoaded(Hoard hoard);
+
+        /**
+         * Called with each batch of actions read. They must be played into the hoard, in
+         * order, using playBatch().
+         *
+         * @param actions the actions
+         * @param total   total number of actions to be loaded, for showing progress, or -1
+         *                if it isn't known
+         * @return false to stop reading
+         */
+        boolean actionsLoaded(List<Action> actions, int total);
+    }
+
+    /**
+     * Read a hoard from JSON text in the form written by write(Writer) or toJSON(), passing
+     * it to the loader a piece at a time, so that it can be shown while it is still loading.
+     * If the actions come before the tree they are taken to be the whole history, and a tree
+     * after them is an error. The number of actions is passed to the loader if the text gives
+     * it before them, as write(Writer) does. Reading stops early if the loader asks it to.
+     *
+     * @param r         reader to read from
+     * @param batchSize number of actions to pass to the loader at once
+     * @param loader    receiver for the hoard and its actions
+     * @throws IOException if the text can't be read or is not a hoard
+     */
+    public static void read(Reader r, int batchSize, Loader loader) throws IOException {
+        read(r, new Hoard(), batchSize, false, loader);
+    }
+
+    // If holdActions, actions found before the tree are held until it arrives. This costs
+    // little, as they are kept in the tail anyway.
+    private static void read(Reader r, Hoard hoard, int batchSize, boolean holdActions, Loader loader) throws IOException {
+        JsonScanner scan = new JsonScanner(r);
+        List<Action> batch = new ArrayList<>();
+        // Number of actions, if written before them
+        int total = -1;
+        boolean treeLoaded = false;
+        boolean sawTree = false;
+        boolean sawActions = false;
+        try {
+            scan.expect('{');
+            if (!scan.skip('}')) {
+                do {
+                    String key = scan.nextString();
+                    scan.expect(':');
+                    if ("tree".equals(key)) {
+                        if (treeLoaded)
+                            throw new IOException("Tree found after actions");
+                        sawTree = true;
+                        hoard.mSnapshot = scan.nextValueText();
+                        hoard.mTree.fromJSON(new JSONObject(hoard.mSnapshot));
+                        loader.treeLoaded(hoard);
+                        treeLoaded = true;
+                        if (batch.size() > 0) {
+                            if (!loader.actionsLoaded(batch, total))
+                                return;
+                            batch = new ArrayList<>();
+                        }
+                    } else if ("actions".equals(key)) {
+                        sawActions = true;
+                        if (!treeLoaded && !holdActions) {
+                            loader.treeLoaded(hoard);
+                            treeLoaded = true;
+                        }
+                        scan.expect('[');
+                        if (!scan.skip(']')) {
+                            do {
+                                batch.add(new Action(new JSONObject(scan.nextValueText())));
+                                if (treeLoaded && batch.size() >= batchSize) {
+                                    if (!loader.actionsLoaded(batch, total))
+                                        return;
+                                    batch = new ArrayList<>();
+                                }
+                            } while (scan.skip(','));
+                            scan.expect(']');
+                        }
+                    } else if ("count".equals(key) && !sawActions) {
+                        try {
+                            total = Integer.parseInt(scan.nextValueText().trim());
+                        } catch (NumberFormatException nfe) {
+                            throw new IOException("Bad action count " + nfe);
+                        }
+                    } else
+                        scan.nextValueText();
+                } while (scan.skip(','));
+                scan.expect('}');
+            }
+        } catch (JSONException je) {
+            throw new IOException("JSON exception during construction " + je);
+        }
+        // The hoard may be in use on another thread by now, so it mustn't be looked at
+        if (!sawActions && !sawTree)
+            throw new IOException("Unsupported hoard format");
+        if (!treeLoaded)
+            // No tree; the actions are the whole history
+            loader.treeLoaded(hoard);
+        if (batch.size() > 0)
+            loader.actionsLoaded(batch, total);
+    }
+
+    /**
+     * Construct from a list of actions. Actions are NOT recorded in the history. Ownership of
+     * the actions passes to the hoard, see playBatch.
      *
      * @param actions list to construct from
      */
     public Hoard(List<Action> actions) {
         this();
-        List<ConflictException> e = playActions(actions, false);
+        List<ConflictException> e = playBatch(actions, false);
         if (e.size() > 0)
             throw new Error("Conflicts during construction " + e);
     }
 
-    public Stack<Event> getHistory() {
+    public UndoHistory getHistory() {
         return mHistory;
     }
 
+    /**
+     * Get the actions played since the last snapshot
+     *
+     * @return the tail of the action log
+     */
+    public List<Action> getTail() {
+        return mTail;
+    }
+
+    /**
+     * Take a snapshot of the tree, and empty the tail
+     */
+    public void compact() {
+        mSnapshot = mTree.toJSON().toString();
+        mTail = new ArrayList<>();
+    }
+
+    /**
+     * Write the hoard as JSON text in the form read by Hoard(Reader), without building the
+     * whole document in memory. If the tail is longer than sMaxTail it is compacted first.
+     *
+     * @param w writer to write to
+     * @throws IOException if the write fails
+     */
+    public void write(Writer w) throws IOException {
+        if (mTail.size() > sMaxTail)
+            compact();
+        w.write('{');
+        if (mSnapshot != null) {
+            w.write("\"tree\":");
+            w.write(mSnapshot);
+            w.write(',');
+        }
+        // So that a reader can show its progress
+        w.write("\"count\":");
+        w.write(Integer.toString(mTail.size()));
+        w.write(",\"actions\":");
+        writeActions(mTail, w);
+        w.write('}');
+        w.flush();
+    }
+
+    /**
+     * Write a list of actions, such as the result of actionsToCreate(), as a JSON array one
+     * action at a time. Wrapped as {"actions": ...} it can be read by Hoard(Reader).
+     *
+     * @param actions actions to write
+     * @param w       writer to write to
+     * @throws IOException if the write fails
+     */
+    public static void writeActions(List<Action> actions, Writer w) throws IOException {
+        w.write('[');
+        boolean sep = false;
+        for (Action act : actions) {
+            if (sep)
+                w.write(',');
+            w.write(act.toJSON().toString());
+            sep = true;
+        }
+        w.write(']');
+    }
+
+    /**
+     * Serialise the hoard in the form read by Hoard(JSONObject). If the tail is longer than
+     * sMaxTail it is compacted first.
+     *
+     * @return a JSON object
+     */
+    public JSONObject toJSON() {
+        if (mTail.size() > sMaxTail)
+            compact();
+        JSONObject job = new JSONObject();
+        try {
+            if (mSnapshot != null)
+                job.put("tree", new JSONObject(mSnapshot));
+            JSONArray actions = new JSONArray();
+            for (Action act : mTail)
+                actions.put(act.toJSON());
+            job.put("actions", actions);
+        } catch (JSONException je) {
+            throw new Error("JSON exception " + je);
+        }
+        return job;
+    }
+
     /**
      * Get the root node of the tree in the hoard
      *
@@ -118,7 +405,7 @@ public class Hoard {
     /**
      * Get the parent node of the given node in the hoard
      *
-     * @return the tree toolbar
+     * @return the parent, or null if the node is the root or is not in the tree
      */
     public Fork getParentOf(HoardNode node) {
         return mTree.getParentOf(node);
@@ -131,7 +418,6 @@ public class Hoard {
      * @param addHistory whether to add the actions to the history or not
      */
     public List<ConflictException> playActions(List<Action> actions, boolean addHistory) {
-        // Play actions without adding to history
         List<ConflictException> exceptions = new ArrayList<>();
         for (Action act : actions) {
             try {
@@ -144,21 +430,138 @@ public class Hoard {
     }
 
     /**
-     * Clear the history
+     * Add a list of actions into the hoard, as when loading a log. Faster than playActions
+     * because the actions are not copied, and parent folders found for one action are
+     * remembered for the next. Ownership of the actions passes to the hoard, so the caller must
+     * not modify them afterwards. Listeners are told once, when the whole batch has been played.
      *
-     * @return the events removed
+     * @param actions    list to add
+     * @param addHistory whether to add the actions to the history or not
+     * @return conflicts for the actions that could not be played
      */
-    public Stack<Event> clearHistory() {
-        Stack<Event> events = mHistory;
-        mHistory = new Stack<>();
-        return events;
+    public List<ConflictException> playBatch(List<Action> actions, boolean addHistory) {
+        List<ConflictException> exceptions = new ArrayList<>();
+        List<Action> played = new ArrayList<>(actions.size());
+        Map<HPath, Fork> forks = new HashMap<>();
+        for (Action act : actions) {
+            try {
+                play(act, addHistory, forks);
+                played.add(act);
+            } catch (ConflictException ce) {
+                exceptions.add(ce);
+            }
+        }
+        notifyPlayed(played);
+        flushChanges();
+        return exceptions;
+    }
+
+    /**
+     * Play actions as part of undo or redo, in one pass and with one notification
+     *
+     * @throws ConflictException the first conflict, after playing the rest
+     */
+    private void playGroup(List<Action> actions) throws ConflictException {
+        ConflictException first = null;
+        List<Action> played = new ArrayList<>(actions.size());
+        Map<HPath, Fork> forks = new HashMap<>();
+        for (Action act : actions) {
+            // Copy, as the history keeps the original
+            act = new Action(act);
+            try {
+                play(act, false, forks);
+                played.add(act);
+            } catch (ConflictException ce) {
+                if (first == null)
+                    first = ce;
+            }
+        }
+        notifyPlayed(played);
+        flushChanges();
+        if (first != null)
+            throw first;
+    }
+
+    // Tell listeners about a batch of actions, or save them for the end of the transaction
+    private void notifyPlayed(List<Action> played) {
+        if (mGroupPlayed != null)
+            mGroupPlayed.addAll(played);
+        else
+            for (ChangeListener listener : mListeners)
+                listener.actionsPlayed(played);
+    }
+
+    /**
+     * Start a transaction. Until the matching commitTransaction(), the undo history records
+     * actions played as one event, so they are undone and redone together, and listeners are
+     * not told about them. Transactions may be nested; only the outermost one counts.
+     */
+    public void beginTransaction() {
+        if (mGroupDepth++ == 0) {
+            mGroup = new ArrayList<>();
+            mGroupPlayed = new ArrayList<>();
+        }
+    }
+
+    /**
+     * End a transaction started by beginTransaction(). Listeners are told about all the actions
+     * played in it with a single ChangeListener.actionsPlayed.
+     */
+    public void commitTransaction() {
+        if (mGroupDepth == 0)
+            throw new Error("No transaction to commit");
+        if (--mGroupDepth > 0)
+            return;
+        if (mGroup.size() == 1)
+            mHistory.add(mGroup.get(0));
+        else if (mGroup.size() > 1)
+            mHistory.add(new Event(mGroup));
+        List<Action> played = mGroupPlayed;
+        mGroup = null;
+        mGroupPlayed = null;
+        if (played.size() > 0)
+            notifyPlayed(played);
+        flushChanges();
+    }
+
+    /**
+     * Find the node at a path, as getNode, remembering the folders found on the way
+     *
+     * @param path  path to look up
+     * @param forks folders already found, indexed by path
+     * @return the node found, or null
+     */
+    private HoardNode resolve(HPath path, Map<HPath, Fork> forks) {
+        if (path.isEmpty())
+            return mTree;
+        HoardNode node = forks.get(path);
+        if (node != null)
+            return node;
+        node = resolve(path.parent(), forks);
+        // A leaf on the path is returned, same as Fork.getByPath
+        if (!(node instanceof Fork))
+            return node;
+        node = ((Fork) node).getChildByName(path.getName());
+        if (node instanceof Fork)
+            forks.put(path, (Fork) node);
+        return node;
+    }
+
+    /**
+     * Clear the history
+     */
+    public void clearHistory() {
+        mHistory.clear();
     }
 
     /**
      * Record an action and its undo
      */
     private void recordEvent(Action redo, Action undo) {
-        mHistory.add(new Event(redo, undo));
+        if (mGroup != null)
+            mGroup.add(new Event(redo, undo));
+        else
+            mHistory.add(new Event(redo, undo));
     }
 
     /**
@@ -177,9 +580,23 @@ public class Hoard {
      */
     public void undo() throws ConflictException {
         Event a = mHistory.pop();
+        try {
+            UndoHistory.restore(a);
+        } catch (IOException ioe) {
+            throw new ConflictException(a.group == null ? a.redo : a.group.get(0).redo,
+                    "undo data was lost: %s", ioe.getMessage());
+        }
 
         // Replay the reverse of the action
-        playAction(a.undo, false);
+        if (a.group == null)
+            playAction(a.undo, false);
+        else {
+            List<Action> undos = new ArrayList<>(a.group.size());
+            for (int i = a.group.size() - 1; i >= 0; i--)
+                undos.add(a.group.get(i).undo);
+            playGroup(undos);
+        }
+        mHistory.undone(a);
     }
 
     /**
@@ -189,6 +606,31 @@ public class Hoard {
         return mHistory.size();
     }
 
+    /**
+     * Redo the action most recently undone
+     *
+     * @throws ConflictException if something goes wrong
+     */
+    public void redo() throws ConflictException {
+        Event a = mHistory.popRedo();
+        if (a.group == null)
+            playAction(a.redo, false);
+        else {
+            List<Action> redos = new ArrayList<>(a.group.size());
+            for (Event e : a.group)
+                redos.add(e.redo);
+            playGroup(redos);
+        }
+        mHistory.redone(a);
+    }
+
+    /**
+     * Return the number of operations that can be redone
+     */
+    public int canRedo() {
+        return mHistory.redoSize();
+    }
+
     /**
      * Promise to play a single action into the tree.
      * <p>
@@ -210,11 +652,29 @@ public class Hoard {
      */
     public void playAction(Action action, boolean undoable) throws ConflictException {
         action = new Action(action);
+        HoardNode[] affected = play(action, undoable, null);
+        if (mGroupPlayed != null)
+            mGroupPlayed.add(action);
+        else
+            for (ChangeListener listener : mListeners)
+                listener.actionPlayed(action, affected[0], affected[1], affected[2]);
+        flushChanges();
+    }
 
+    /**
+     * Play a single action into the tree, without copying it or notifying listeners
+     *
+     * @param action   the action record
+     * @param undoable if true, an action that undoes this action will be added to the history
+     * @param forks    folders already found by resolve(), or null to look up from the root.
+     *                 Cleared when the action changes the tree structure.
+     * @return the parent, the node, and the new parent (or null) for ChangeListener.actionPlayed
+     */
+    private HoardNode[] play(Action action, boolean undoable, Map<HPath, Fork> forks) throws ConflictException {
         if (action.path.size() == 0)
             throw new ConflictException(action, "Internal error: Zero length path");
 
-        HoardNode actionNode = mTree.getByPath(action.path.parent());
+        HoardNode actionNode = (forks == null) ? mTree.getByPath(action.path.parent()) : resolve(action.path.parent(), forks);
 
         // HPath must always point to a valid parent Fork pre-existing
         // in the tree. parent will never be null
@@ -226,10 +686,12 @@ public class Hoard {
         Fork actionNodeParent = (Fork) actionNode;
         Fork actionNodeNewParent = null;
 
-        String actionNodeName = action.path.get(action.path.size() - 1);
+        String actionNodeName = action.path.getName();
         // HoardNode may be undefined e.g. if we are creating
         actionNode = actionNodeParent.getChildByName(actionNodeName);
         Leaf leaf;
+        // Node replaced by INSERT
+        HoardNode replaced = null;
 
         if (action.type == Action.NEW) { // New
             if (actionNode != null)
@@ -257,6 +719,8 @@ public class Hoard {
                 recordEvent(action, new Action(Action.DELETE, action.path, action.time));
             if (action.data == null)
                 throw new ConflictException(action, "InternalError: null data");
+            // Any node already there is replaced
+            replaced = actionNode;
             try {
                 JSONObject job = new JSONObject(action.data);
                 if (job.get("data") instanceof JSONObject)
@@ -267,6 +731,11 @@ public class Hoard {
                 actionNode = new Leaf(null, this, action.data);
             }
             actionNodeParent.addChild(actionNode);
+            if (mAlarms != null) {
+                if (replaced != null)
+                    mAlarms.remove(replaced);
+                mAlarms.add(actionNode);
+            }
 
             if (actionNodeParent.getTime() < action.time)
                 actionNodeParent.setTime(action.time);
@@ -284,6 +753,8 @@ public class Hoard {
                     if (actionNodeParent.getChildByName(actionNodeName) != actionNode)
                         throw new Error("Unexpected");
                     actionNodeParent.removeChild(actionNode);
+                    if (mAlarms != null)
+                        mAlarms.remove(actionNode);
                     if (actionNodeParent.getTime() < action.time)
                         actionNodeParent.setTime(action.time);
                     break;
@@ -301,7 +772,7 @@ public class Hoard {
 
                 case Action.MOVE: // Move to another parent
                     // action.data is the path of the new parent
-                    HPath new_parent_path = new HPath(action.data);
+                    HPath new_parent_path = HPath.valueOf(action.data);
                     actionNodeNewParent = (Fork) mTree.getByPath(new_parent_path);
                     if (actionNodeNewParent == null)
                         throw new ConflictException(action, "target folder '%s' does not exist", action.data);
@@ -311,7 +782,7 @@ public class Hoard {
 
                     if (undoable) {
                         // Undo moves the node back to the original parent
-                        HPath from_parent = new HPath(action.path).parent();
+                        HPath from_parent = action.path.parent();
                         Action undo = new Action(Action.MOVE, new_parent_path.with(actionNodeName), actionNodeParent.getTime(), from_parent.toString());
                         recordEvent(action, undo);
                     }
@@ -330,9 +801,7 @@ public class Hoard {
                     if (actionNodeParent.getChildByName(new_name) != null)
                         throw new ConflictException(action, "it already exists");
                     if (undoable) {
-                        HPath p = new HPath(action.path);
-                        p.remove(p.size() - 1);
-                        p.add(new_name);
+                        HPath p = action.path.parent().child(new_name);
                         recordEvent(action, new Action(Action.RENAME, p, actionNodeParent.getTime(), actionNodeName));
                     }
                     actionNodeParent.removeChild(actionNode);
@@ -358,6 +827,8 @@ public class Hoard {
                             throw new ConflictException(action, je.getMessage());
                         }
                     }
+                    if (mAlarms != null)
+                        mAlarms.update(actionNode);
                     actionNode.setTime(action.time);
                     break;
 
@@ -366,6 +837,8 @@ public class Hoard {
                     if (undoable)
                         recordEvent(action, new Action(Action.SET_ALARM, action.path, actionNodeParent.getTime(), actionNode.getAlarm().toJSON().toString()));
                     actionNode.setAlarm(null);
+                    if (mAlarms != null)
+                        mAlarms.update(actionNode);
                     actionNode.setTime(action.time);
                     break;
 
@@ -401,9 +874,22 @@ public class Hoard {
             }
         }
 
-        // Notify listeners
-        for (ChangeListener listener : mListeners)
-            listener.actionPlayed(action, actionNodeParent, actionNode, actionNodeNewParent);
+        // Folders may have been removed, replaced or moved
+        if (forks != null && (action.type == Action.INSERT
+                || (actionNode instanceof Fork && (action.type == Action.DELETE || action.type == Action.MOVE || action.type == Action.RENAME))))
+            forks.clear();
+
+        mTail.add(action);
+        if (mBatchListeners.size() > 0) {
+            if (mPending == null)
+                mPending = new ChangeSet();
+            if (replaced != null)
+                mPending.replaced(replaced, actionNodeParent);
+            mPending.record(action, actionNodeParent, actionNode, actionNodeNewParent);
+            if (mBatchSize > 0 && mPending.getActionCount() >= mBatchSize)
+                flushChanges();
+        }
+        return new HoardNode[]{actionNodeParent, actionNode, actionNodeNewParent};
     }
 
     /**
@@ -421,7 +907,18 @@ public class Hoard {
      * @see HoardNode .diff(HPath, HoardNode, HoardNode.DiffReporter)
      */
     public void diff(Hoard b, HoardNode.DiffReporter differ) {
-        mTree.diff(new HPath(), b.mTree, differ);
+        mTree.diff(HPath.ROOT, b.mTree, differ);
+    }
+
+    /**
+     * Get a hash of the content of the hoard. Two hoards with the same hash can be assumed to
+     * have the same content, without needing to diff them.
+     *
+     * @return the hash
+     * @see HoardNode#getHash()
+     */
+    public long getHash() {
+        return mTree.getHash();
     }
 
     /**
@@ -441,18 +938,42 @@ public class Hoard {
      * @return the path, or null if the node is not found in the tree.
      */
     public HPath getPathOf(HoardNode node) {
-        return mTree.makePath(node, new HPath());
+        return node.makePath(mTree);
+    }
+
+    // Get the alarm index, building it if needed
+    private AlarmIndex getAlarms() {
+        if (mAlarms == null) {
+            mAlarms = new AlarmIndex();
+            mAlarms.add(mTree);
+        }
+        return mAlarms;
     }
 
     /**
-     * Promise to check all alarms. Returns a promise to resolve all the
-     * promises returned by 'ring'.
+     * Ring all alarms that are due, in the order they are due. Only the nodes with alarms
+     * that are due are visited.
      *
      * @param now    the "current" time
      * @param ringfn function([], Date)
      */
     public void checkAlarms(long now, Alarm.Ringer ringfn) {
-        mTree.checkAlarms(new HPath(), now, ringfn);
+        AlarmIndex alarms = getAlarms();
+        HoardNode node;
+        while ((node = alarms.first()) != null && alarms.firstDue() <= now) {
+            node.checkAlarm(getPathOf(node), now, ringfn);
+            alarms.update(node);
+        }
+    }
+
+    /**
+     * Get the time the next alarm is due, so the caller can wait until then to call
+     * checkAlarms()
+     *
+     * @return the time in ms, or 0 if there are no alarms
+     */
+    public long getNextAlarmDue() {
+        return getAlarms().firstDue();
     }
 
     public interface ChangeListener {
@@ -465,9 +986,35 @@ public class Hoard {
          * @param newParent new parent node, if action is MOVE, null otherwise
          */
         void actionPlayed(Action act, HoardNode parent, HoardNode node, HoardNode newParent);
+
+        /**
+         * Invoked when a batch of actions has been played by playBatch, in a transaction, or
+         * by undo or redo of a transaction, instead of actionPlayed for each action. The tree
+         * may have changed in any way.
+         *
+         * @param acts the actions that were played without conflict
+         */
+        default void actionsPlayed(List<Action> acts) {
+        }
+    }
+
+    /**
+     * Listener for the net effect of actions. Where a ChangeListener is told about each action
+     * as it is played, a BatchListener is told about changes to each node once per batch:
+     * at the end of playAction, playBatch, undo, redo or a transaction, or every so many
+     * actions if setBatchSize() has been used.
+     */
+    public interface BatchListener {
+        /**
+         * Invoked when a batch of actions has been played
+         *
+         * @param changes the net effect of the actions on the tree
+         */
+        void changesPlayed(ChangeSet changes);
     }
 
     List<ChangeListener> mListeners = new ArrayList<>();
+    List<BatchListener> mBatchListeners = new ArrayList<>();
 
     public void addChangeListener(ChangeListener listener) {
         if (mListeners.indexOf(listener) == -1)
@@ -480,5 +1027,41 @@ public class Hoard {
 
     public void clearChangeListeners() {
         mListeners.clear();
+        mBatchListeners.clear();
+        mPending = null;
+    }
+
+    public void addBatchListener(BatchListener listener) {
+        if (mBatchListeners.indexOf(listener) == -1)
+            mBatchListeners.add(listener);
+    }
+
+    public void removeBatchListener(BatchListener listener) {
+        mBatchListeners.remove(listener);
+        if (mBatchListeners.size() == 0)
+            mPending = null;
+    }
+
+    /**
+     * Set how often batch listeners are told about changes during a long batch, such as
+     * loading a large log, so progress can be shown. Changes in a transaction are always held
+     * until it is committed.
+     *
+     * @param actions number of actions, or 0 to only tell them at the end of each batch
+     */
+    public void setBatchSize(int actions) {
+        mBatchSize = actions;
+    }
+
+    // Give pending changes to batch listeners, unless a transaction is open
+    private void flushChanges() {
+        if (mPending == null || mGroupDepth > 0)
+            return;
+        ChangeSet changes = mPending;
+        mPending = null;
+        changes.close(mTree);
+        if (!changes.isEmpty())
+            for (BatchListener listener : mBatchListeners)
+                listener.changesPlayed(changes);
     }
 }
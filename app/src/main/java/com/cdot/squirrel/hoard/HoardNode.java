@@ -27,8 +27,19 @@ public abstract class HoardNode implements JSONable {
     protected long mTime = System.currentTimeMillis();
     protected String mName;
     private Alarm mAlarm;
+    // Fork this node is a child of, maintained by Fork.addChild and Fork.removeChild. Null for
+    // the root, and for nodes that have been removed from the tree.
+    private Fork mParent;
     // Use a weak reference to the hoard so we can garbage collect
     private WeakReference<Hoard> mHoard;
+    // Cached content hash of the subtree under this node, valid if mHashValid. If a node's
+    // hash is invalid, then so are the hashes of all its ancestors.
+    private long mHash;
+    private boolean mHashValid = false;
+
+    // Seed and multiplier for the content hash (64 bit FNV)
+    private static final long HASH_SEED = 0xCBF29CE484222325L;
+    private static final long HASH_PRIME = 0x100000001B3L;
 
     /**
      * Construct
@@ -54,8 +65,79 @@ public abstract class HoardNode implements JSONable {
      *
      * @return the parent node (which must be a fork) or null
      */
-    public HoardNode getParent() {
-        return getHoard().getParentOf(this);
+    public Fork getParent() {
+        return mParent;
+    }
+
+    void setParent(Fork parent) {
+        mParent = parent;
+    }
+
+    /**
+     * Get a hash of the content of the subtree under this node; names, times, data, alarms,
+     * constraints and children. Two subtrees with the same hash can be assumed to have the same
+     * content. The time of the root is not included, as it is the time the hoard was created,
+     * so two hoards with the same content will have the same root hash.
+     * <p>
+     * The hash is cached, and invalidated up to the root whenever the subtree changes, so the
+     * cost of recomputing it is proportional to the number of nodes changed.
+     *
+     * @return the hash
+     */
+    public long getHash() {
+        if (!mHashValid) {
+            mHash = mix(computeHash());
+            mHashValid = true;
+        }
+        return mHash;
+    }
+
+    /**
+     * Compute the hash of this node. Designed to be overloaded in subclasses.
+     *
+     * @return the (unmixed) hash
+     */
+    protected long computeHash() {
+        long h = hash(HASH_SEED, mName);
+        if (mName != null)
+            h = hash(h, mTime);
+        if (mAlarm != null)
+            h = hash(hash(h, mAlarm.due), mAlarm.repeat);
+        return h;
+    }
+
+    /**
+     * Invalidate the cached hash of this node and its ancestors. Must be called whenever the
+     * content of the node changes.
+     */
+    void invalidateHash() {
+        for (HoardNode n = this; n != null && n.mHashValid; n = n.mParent)
+            n.mHashValid = false;
+    }
+
+    /**
+     * Fold a long into a running hash
+     */
+    static long hash(long h, long v) {
+        return (h ^ v) * HASH_PRIME;
+    }
+
+    /**
+     * Fold a string into a running hash. null and "" hash differently.
+     */
+    static long hash(long h, String s) {
+        if (s == null)
+            return hash(h, -1);
+        for (int i = 0; i < s.length(); i++)
+            h = hash(h, s.charAt(i));
+        return hash(h, s.length());
+    }
+
+    // Finalise a hash so that every bit of input affects every bit of output
+    private static long mix(long h) {
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
     }
 
     /**
@@ -67,12 +149,27 @@ public abstract class HoardNode implements JSONable {
         return null;
     }
 
+    /**
+     * Determine if this node is the given node or one of its ancestors. Cost is proportional
+     * to the depth of n.
+     *
+     * @param n node to test
+     * @return true if n is in the subtree under this node
+     */
+    boolean isAncestorOf(HoardNode n) {
+        for (; n != null; n = n.mParent)
+            if (n == this)
+                return true;
+        return false;
+    }
+
     public String getName() {
         return mName;
     }
 
     public void setName(String n) {
         mName = n;
+        invalidateHash();
     }
 
     public Alarm getAlarm() {
@@ -81,10 +178,12 @@ public abstract class HoardNode implements JSONable {
 
     public void setAlarm(Alarm a) {
         mAlarm = a;
+        invalidateHash();
     }
 
     public void setTime(long t) {
         mTime = t;
+        invalidateHash();
     }
 
     public long getTime() {
@@ -110,20 +209,22 @@ public abstract class HoardNode implements JSONable {
      * @return a list of actions
      */
     public List<Action> actionsToCreate() {
-        return actionsToCreate(new HPath());
+        return actionsToCreate(HPath.ROOT);
     }
 
     /**
-     * Return the path to the given node.
+     * Return the path to this node from the given ancestor, by walking up the parent links.
      *
-     * @param find     the node to find
-     * @param pathHere the path to this node
-     * @return the path, or null if the node is not found in the tree.
+     * @param root the node the path is relative to
+     * @return the path, or null if this node is not in the subtree under root.
      */
-    HPath makePath(HoardNode find, HPath pathHere) {
-        if (this == find)
-            return pathHere;
-        return null;
+    HPath makePath(HoardNode root) {
+        if (this == root)
+            return HPath.ROOT;
+        if (mParent == null)
+            return null;
+        HPath path = mParent.makePath(root);
+        return (path == null) ? null : path.child(mName);
     }
 
     /**
@@ -168,6 +269,8 @@ public abstract class HoardNode implements JSONable {
         JSONObject job = new JSONObject();
         try {
             job.put("time", mTime);
+            if (mAlarm != null)
+                job.put("alarm", mAlarm.toJSON());
         } catch (JSONException ignore) {
         }
         return job;
@@ -182,6 +285,7 @@ public abstract class HoardNode implements JSONable {
             } catch (JSONException ignore) {
                 // Alarm formats are somewhat confused. Only handle correctly formatted alarms.
             }
+        invalidateHash();
     }
 
     /**
@@ -200,7 +304,8 @@ public abstract class HoardNode implements JSONable {
     void diff(HPath path, HoardNode b, DiffReporter differ) {
         if (mAlarm != null && b.mAlarm == null)
             differ.difference(new Action(Action.SET_ALARM, path), this, b);
-        else if (b.mAlarm != null)
+        else if (b.mAlarm != null
+                && (mAlarm == null || mAlarm.due != b.mAlarm.due || mAlarm.repeat != b.mAlarm.repeat))
             differ.difference(new Action(Action.SET_ALARM, path, b.mAlarm.toJSON().toString()), this, b);
         if (!Objects.equals(mName, b.mName))
             // Can this ever happen?
@@ -208,13 +313,13 @@ public abstract class HoardNode implements JSONable {
     }
 
     /**
-     * Check all alarms in this subtree.
+     * Check the alarm on this node, and ring it if it is due.
      *
      * @param now  the "current" time
      * @param path tree path to reach this node
      * @param ring ringer to invoke when an alarm is triggered
      */
-    void checkAlarms(HPath path, long now, Alarm.Ringer ring) {
+    void checkAlarm(HPath path, long now, Alarm.Ringer ring) {
         if (mAlarm == null)
             return;
 
@@ -227,6 +332,7 @@ public abstract class HoardNode implements JSONable {
             else
                 // Disable the alarm (no repeat)
                 mAlarm = null;
+            invalidateHash();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,158 @@
+package com.cdot.squirrel.hoard;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Minimal pull scanner for JSON text, used to walk the top level of a large document
+ * without building it all in memory. Values of interest are returned as text, to be parsed
+ * with org.json one at a time.
+ */
+class JsonScanner {
+    private final Reader mIn;
+    // One character of lookahead, -2 if none
+    private int mNext = -2;
+    private final StringBuilder mText = new StringBuilder();
+
+    /**
+     * @param in reader to scan
+     */
+    JsonScanner(Reader in) {
+        mIn = (in instanceof BufferedReader) ? in : new BufferedReader(in);
+    }
+
+    private int read() throws IOException {
+        if (mNext != -2) {
+            int c = mNext;
+            mNext = -2;
+            return c;
+        }
+        return mIn.read();
+    }
+
+    /**
+     * Look at the next character that is not whitespace, without consuming it
+     *
+     * @return the character, or -1 at end of input
+     */
+    int peek() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c == ' ' || c == '\t' || c == '\n' || c == '\r');
+        mNext = c;
+        return c;
+    }
+
+    /**
+     * Consume the next non-whitespace character, which must be c
+     */
+    void expect(char c) throws IOException {
+        int got = peek();
+        if (got != c)
+            throw new IOException("Expected '" + c + "' but found " + (got < 0 ? "end of input" : "'" + (char) got + "'"));
+        mNext = -2;
+    }
+
+    /**
+     * Consume the next non-whitespace character if it is c
+     *
+     * @return true if it was consumed
+     */
+    boolean skip(char c) throws IOException {
+        if (peek() != c)
+            return false;
+        mNext = -2;
+        return true;
+    }
+
+    /**
+     * Read a string
+     *
+     * @return the decoded string
+     */
+    String nextString() throws IOException {
+        expect('"');
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = read()) != '"') {
+            if (c < 0)
+                throw new IOException("Unterminated string");
+            if (c == '\\') {
+                c = read();
+                switch (c) {
+                    case 'b': c = '\b'; break;
+                    case 'f': c = '\f'; break;
+                    case 'n': c = '\n'; break;
+                    case 'r': c = '\r'; break;
+                    case 't': c = '\t'; break;
+                    case 'u':
+                        c = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int d = Character.digit(read(), 16);
+                            if (d < 0)
+                                throw new IOException("Bad unicode escape");
+                            c = (c << 4) | d;
+                        }
+                        break;
+                    case '"': case '\\': case '/':
+                        break;
+                    default:
+                        throw new IOException("Bad escape");
+                }
+            }
+            sb.append((char) c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Read the text of the next value, which may be an object, array, string or other literal
+     *
+     * @return the JSON text of the value
+     */
+    String nextValueText() throws IOException {
+        mText.setLength(0);
+        int c = peek();
+        if (c == '{' || c == '[') {
+            int depth = 0;
+            boolean inString = false;
+            do {
+                c = read();
+                if (c < 0)
+                    throw new IOException("Unexpected end of input");
+                mText.append((char) c);
+                if (inString) {
+                    if (c == '\\')
+                        mText.append((char) read());
+                    else if (c == '"')
+                        inString = false;
+                } else if (c == '"')
+                    inString = true;
+                else if (c == '{' || c == '[')
+                    depth++;
+                else if (c == '}' || c == ']')
+                    depth--;
+            } while (depth > 0);
+        } else if (c == '"') {
+            mText.append((char) read());
+            while ((c = read()) != '"') {
+                if (c < 0)
+                    throw new IOException("Unterminated string");
+                mText.append((char) c);
+                if (c == '\\')
+                    mText.append((char) read());
+            }
+            mText.append('"');
+        } else {
+            while ((c = read()) >= 0 && c != ',' && c != '}' && c != ']'
+                    && c != ' ' && c != '\t' && c != '\n' && c != '\r')
+                mText.append((char) c);
+            mNext = c;
+            if (mText.length() == 0)
+                throw new IOException("Value expected");
+        }
+        return mText.toString();
+    }
+}
@@ -49,6 +49,7 @@ public class Leaf extends HoardNode {
 
     public void setConstraints(Constraints cons) {
         mConstraints = cons;
+        invalidateHash();
     }
 
     /**
@@ -57,6 +58,7 @@ public class Leaf extends HoardNode {
      */
     public void setData(String data) {
         this.mData = data;
+        invalidateHash();
     }
 
     public boolean meetsConstraints() {
@@ -68,13 +70,22 @@ public class Leaf extends HoardNode {
     @Override
     protected List<Action> actionsToCreate(HPath path) {
         List<Action> actions = new ArrayList<>();
-        actions.add(new Action(Action.NEW, path.with(mName), mTime, mData));
+        path = path.with(mName);
+        actions.add(new Action(Action.NEW, path, mTime, mData));
         if (mConstraints != null)
             actions.addAll(mConstraints.actionsToCreate(path));
         actions.addAll(super.actionsToCreate(path));
         return actions;
     }
 
+    @Override // HoardNode
+    protected long computeHash() {
+        long h = hash(hash(super.computeHash(), 'L'), mData);
+        if (mConstraints != null)
+            h = hash(hash(h, mConstraints.length), mConstraints.characters);
+        return h;
+    }
+
     @Override
     public String toString(int tab) {
         String tabs = (tab == 0) ? "" : String.format("%1$" + tab + "s", "");
@@ -108,6 +119,8 @@ public class Leaf extends HoardNode {
             // TODO
             return;
         }
+        if (getHash() == b.getHash())
+            return;
         Leaf lb = (Leaf) b;
         if (!lb.mData.equals(mData))
             differ.difference(new Action(Action.EDIT, path, lb.mData), this, b);
@@ -0,0 +1,214 @@
+package com.cdot.squirrel.hoard;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Index of the words in node names, and optionally in leaf data, for searching as the user
+ * types. Words are split at anything that isn't a letter or digit, and matched without regard
+ * to case. A node matches a query if every word in the query is the start of a word in the
+ * node. The index is kept up to date by listening for changes to the hoard.
+ */
+public class SearchIndex implements Hoard.BatchListener {
+
+    /**
+     * Receiver for search results
+     */
+    public interface Receiver {
+        /**
+         * Called for each node found
+         *
+         * @param path path to the node
+         * @param node the node
+         * @return false to stop searching
+         */
+        boolean found(HPath path, HoardNode node);
+    }
+
+    private final Hoard mHoard;
+    private final boolean mIncludeData;
+    // Nodes containing each word. Words sharing a prefix are adjacent, so a prefix can be
+    // looked up as a range.
+    private final TreeMap<String, Set<HoardNode>> mWords = new TreeMap<>();
+    // Words in each node indexed
+    private final Map<HoardNode, String[]> mTerms = new IdentityHashMap<>();
+
+    /**
+     * Build an index of a hoard, and keep it up to date
+     *
+     * @param hoard       the hoard to index
+     * @param includeData whether to index the data in leaves as well as node names
+     */
+    public SearchIndex(Hoard hoard, boolean includeData) {
+        mHoard = hoard;
+        mIncludeData = includeData;
+        for (HoardNode child : hoard.getRoot().getChildren().values())
+            add(child);
+        hoard.addBatchListener(this);
+    }
+
+    /**
+     * Stop keeping the index up to date
+     */
+    public void close() {
+        mHoard.removeBatchListener(this);
+    }
+
+    /**
+     * Split text into lower case words
+     *
+     * @param text text to split, may be null
+     * @return the words, without duplicates
+     */
+    static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        if (text == null)
+            return words;
+        int n = text.length();
+        int i = 0;
+        while (i < n) {
+            while (i < n && !Character.isLetterOrDigit(text.charAt(i)))
+                i++;
+            int start = i;
+            while (i < n && Character.isLetterOrDigit(text.charAt(i)))
+                i++;
+            if (i > start) {
+                String word = text.substring(start, i).toLowerCase();
+                if (!words.contains(word))
+                    words.add(word);
+            }
+        }
+        return words;
+    }
+
+    // Index a node and its subtree
+    private void add(HoardNode node) {
+        index(node);
+        if (node instanceof Fork)
+            for (HoardNode child : ((Fork) node).getChildren().values())
+                add(child);
+    }
+
+    // Remove a node and its subtree from the index
+    private void remove(HoardNode node) {
+        unindex(node);
+        if (node instanceof Fork)
+            for (HoardNode child : ((Fork) node).getChildren().values())
+                remove(child);
+    }
+
+    private void index(HoardNode node) {
+        List<String> words = words(node.getName());
+        if (mIncludeData && node instanceof Leaf)
+            for (String word : words(((Leaf) node).getData()))
+                if (!words.contains(word))
+                    words.add(word);
+        if (words.isEmpty())
+            return;
+        String[] terms = words.toArray(new String[0]);
+        mTerms.put(node, terms);
+        for (String term : terms) {
+            Set<HoardNode> nodes = mWords.get(term);
+            if (nodes == null) {
+                nodes = Collections.newSetFromMap(new IdentityHashMap<>());
+                mWords.put(term, nodes);
+            }
+            nodes.add(node);
+        }
+    }
+
+    private void unindex(HoardNode node) {
+        String[] terms = mTerms.remove(node);
+        if (terms == null)
+            return;
+        for (String term : terms) {
+            Set<HoardNode> nodes = mWords.get(term);
+            nodes.remove(node);
+            if (nodes.isEmpty())
+                mWords.remove(term);
+        }
+    }
+
+    @Override // Hoard.BatchListener
+    public void changesPlayed(ChangeSet changes) {
+        for (HoardNode node : changes.getRemoved())
+            remove(node);
+        for (HoardNode node : changes.getAdded())
+            add(node);
+        // Moved nodes keep their words, and paths are found when the nodes are
+        for (HoardNode node : changes.getChanged()) {
+            unindex(node);
+            if (node != mHoard.getRoot())
+                index(node);
+        }
+    }
+
+    // Does any of the terms start with prefix?
+    private static boolean matches(String[] terms, String prefix) {
+        for (String term : terms)
+            if (term.startsWith(prefix))
+                return true;
+        return false;
+    }
+
+    /**
+     * Find the nodes matching a query. Results are passed to the receiver as they are found,
+     * in no particular order.
+     *
+     * @param query    words to search for
+     * @param receiver receiver for the results
+     */
+    public void search(String query, Receiver receiver) {
+        List<String> words = words(query);
+        if (words.isEmpty())
+            return;
+        // Look up the longest word, which is likely to match the fewest nodes, and check the
+        // others against the nodes it finds
+        String key = words.get(0);
+        for (String word : words)
+            if (word.length() > key.length())
+                key = word;
+        SortedMap<String, Set<HoardNode>> range = mWords.subMap(key, key + Character.MAX_VALUE);
+        // A node may have several words starting with the key. The range isn't counted first,
+        // as that would mean walking it twice.
+        Set<HoardNode> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Set<HoardNode> nodes : range.values()) {
+            for (HoardNode node : nodes) {
+                if (!seen.add(node))
+                    continue;
+                String[] terms = mTerms.get(node);
+                boolean match = true;
+                for (String word : words)
+                    if (word != key && !matches(terms, word)) {
+                        match = false;
+                        break;
+                    }
+                if (match && !receiver.found(mHoard.getPathOf(node), node))
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Find the nodes matching a query
+     *
+     * @param query words to search for
+     * @param max   maximum number of results
+     * @return paths of the nodes found
+     */
+    public List<HPath> search(String query, int max) {
+        List<HPath> found = new ArrayList<>();
+        if (max > 0)
+            search(query, (path, node) -> {
+                found.add(path);
+                return found.size() < max;
+            });
+        return found;
+    }
+}
@@ -0,0 +1,299 @@
+package com.cdot.squirrel.hoard;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * History of actions played into a hoard, for undo and redo. The history is limited by a number
+ * of events and by an estimate of the memory they use, and the oldest events are forgotten first.
+ * Large undo data, such as the subtree saved when a folder is deleted, is kept compressed, and
+ * if a spill directory is given, the largest is written to a temporary file there.
+ * <p>
+ * Events that have been undone are kept for redo until a new event is added. Their undo data
+ * is packed again in the same way, and as there can't be more of them than the history holds,
+ * they are not counted against the limits.
+ */
+public class UndoHistory {
+    public static final int DEFAULT_MAX_EVENTS = 500;
+    public static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    // Undo data longer than this many chars is compressed
+    static int sPackThreshold = 4096;
+    // Compressed undo data longer than this many bytes is spilled to a file
+    static int sSpillThreshold = 64 * 1024;
+    // Rough size of an event and its actions, excluding data
+    private static final int EVENT_BYTES = 128;
+    // Prefix of the names of spill files
+    static final String SPILL_PREFIX = "squirrel-undo-";
+    // Spill directories that have been swept of stale files by this process
+    private static final Set<File> sSwept = new HashSet<>();
+
+    private final List<Hoard.Event> mEvents = new ArrayList<>();
+    // Events undone, most recent last
+    private final List<Hoard.Event> mRedo = new ArrayList<>();
+    private int mMaxEvents = DEFAULT_MAX_EVENTS;
+    private long mMaxBytes = DEFAULT_MAX_BYTES;
+    // Estimated size of the events in the history
+    private long mBytes = 0;
+    private File mSpillDir;
+
+    /**
+     * Set the limits on the history. The most recent event is always kept, however big it is.
+     *
+     * @param maxEvents maximum number of events
+     * @param maxBytes  maximum estimated memory use
+     */
+    public void setLimits(int maxEvents, long maxBytes) {
+        mMaxEvents = Math.max(1, maxEvents);
+        mMaxBytes = maxBytes;
+        evict();
+    }
+
+    /**
+     * Set where very large undo data is written. If not set, it is kept in memory, compressed.
+     * The first time a directory is used in a process, spill files left in it by a previous
+     * process, which may have been killed before it could remove them, are deleted. Later
+     * histories using the same directory leave it alone, as its spill files may be live.
+     *
+     * @param dir directory for temporary files, such as Context.getCacheDir()
+     */
+    public void setSpillDirectory(File dir) {
+        mSpillDir = dir;
+        sweep(dir);
+    }
+
+    // Delete stale spill files, once per directory per process
+    private static synchronized void sweep(File dir) {
+        if (!sSwept.add(dir.getAbsoluteFile()))
+            return;
+        File[] stale = dir.listFiles((d, name) -> name.startsWith(SPILL_PREFIX));
+        if (stale == null)
+            return;
+        for (File f : stale)
+            f.delete();
+    }
+
+    /**
+     * @return the number of events in the history
+     */
+    public int size() {
+        return mEvents.size();
+    }
+
+    /**
+     * @return the number of events that can be redone
+     */
+    public int redoSize() {
+        return mRedo.size();
+    }
+
+    /**
+     * @return the estimated memory used by the history, in bytes
+     */
+    public long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * Get an event. The undo data of a large event is not available until it is popped.
+     *
+     * @param i index of the event, 0 being the oldest
+     * @return the event
+     */
+    Hoard.Event get(int i) {
+        return mEvents.get(i);
+    }
+
+    /**
+     * Add a new event, forgetting the oldest events if the history is over its limits. Events
+     * that were undone can no longer be redone.
+     *
+     * @param e event to add
+     */
+    void add(Hoard.Event e) {
+        for (Hoard.Event re : mRedo)
+            discard(re);
+        mRedo.clear();
+        push(e);
+    }
+
+    /**
+     * Put back an event that has been redone
+     *
+     * @param e event returned by popRedo()
+     */
+    void redone(Hoard.Event e) {
+        push(e);
+    }
+
+    /**
+     * Keep an event that has been undone, for redo
+     *
+     * @param e event returned by pop()
+     */
+    void undone(Hoard.Event e) {
+        pack(e);
+        mRedo.add(e);
+    }
+
+    /**
+     * Remove the most recently undone event
+     *
+     * @return the event
+     */
+    Hoard.Event popRedo() {
+        return mRedo.remove(mRedo.size() - 1);
+    }
+
+    private void push(Hoard.Event e) {
+        pack(e);
+        mEvents.add(e);
+        mBytes += bytes(e);
+        evict();
+    }
+
+    /**
+     * Remove the most recent event. Its undo data must then be restored using restore().
+     *
+     * @return the event
+     */
+    Hoard.Event pop() {
+        Hoard.Event e = mEvents.remove(mEvents.size() - 1);
+        mBytes -= bytes(e);
+        return e;
+    }
+
+    /**
+     * Restore the undo data of an event removed by pop()
+     *
+     * @param e the event
+     * @throws IOException if spilled undo data can't be read
+     */
+    static void restore(Hoard.Event e) throws IOException {
+        if (e.group != null) {
+            for (Hoard.Event ge : e.group)
+                restore(ge);
+            return;
+        }
+        try {
+            unpack(e);
+        } finally {
+            discard(e);
+        }
+    }
+
+    /**
+     * Forget all events
+     */
+    void clear() {
+        for (Hoard.Event e : mEvents)
+            discard(e);
+        for (Hoard.Event e : mRedo)
+            discard(e);
+        mEvents.clear();
+        mRedo.clear();
+        mBytes = 0;
+    }
+
+    private void evict() {
+        int n = 0;
+        while (mEvents.size() - n > 1 && (mEvents.size() - n > mMaxEvents || mBytes > mMaxBytes)) {
+            Hoard.Event e = mEvents.get(n++);
+            mBytes -= bytes(e);
+            discard(e);
+        }
+        mEvents.subList(0, n).clear();
+    }
+
+    private static long bytes(Hoard.Event e) {
+        long b = EVENT_BYTES;
+        if (e.group != null) {
+            for (Hoard.Event ge : e.group)
+                b += bytes(ge);
+            return b;
+        }
+        if (e.redo.data != null)
+            b += 2L * e.redo.data.length();
+        if (e.undo.data != null)
+            b += 2L * e.undo.data.length();
+        if (e.packed != null)
+            b += e.packed.length;
+        return b;
+    }
+
+    // Compress large undo data, and spill it to a file if it is still large
+    private void pack(Hoard.Event e) {
+        if (e.group != null) {
+            for (Hoard.Event ge : e.group)
+                pack(ge);
+            return;
+        }
+        if (e.undo.data == null || e.undo.data.length() <= sPackThreshold)
+            return;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (OutputStream out = new DeflaterOutputStream(bytes, deflater)) {
+            out.write(e.undo.data.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ioe) {
+            // Can't happen writing to memory; leave the data as it is
+            return;
+        } finally {
+            deflater.end();
+        }
+        byte[] packed = bytes.toByteArray();
+        if (mSpillDir != null && packed.length > sSpillThreshold) {
+            try {
+                File f = File.createTempFile(SPILL_PREFIX, null, mSpillDir);
+                try (OutputStream out = new FileOutputStream(f)) {
+                    out.write(packed);
+                }
+                e.spill = f;
+                packed = null;
+            } catch (IOException ioe) {
+                // Keep it in memory
+            }
+        }
+        e.packed = packed;
+        e.undo.data = null;
+    }
+
+    // Restore undo data packed by pack()
+    private static void unpack(Hoard.Event e) throws IOException {
+        if (e.packed == null && e.spill == null)
+            return;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream in = new InflaterInputStream(
+                e.spill != null ? new FileInputStream(e.spill) : new ByteArrayInputStream(e.packed))) {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0)
+                bytes.write(buf, 0, n);
+        }
+        e.undo.data = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        e.packed = null;
+    }
+
+    private static void discard(Hoard.Event e) {
+        if (e.group != null)
+            for (Hoard.Event ge : e.group)
+                discard(ge);
+        if (e.spill != null) {
+            e.spill.delete();
+            e.spill = null;
+        }
+    }
+}
@@ -1,23 +1,32 @@
 package com.cdot.squirrel.ui.activity;
 
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.View;
+import android.widget.ProgressBar;
 
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentManager;
 import androidx.fragment.app.FragmentTransaction;
 
+import com.cdot.squirrel.hoard.Action;
 import com.cdot.squirrel.hoard.Hoard;
 import com.cdot.squirrel.ui.R;
 import com.cdot.squirrel.ui.databinding.MainActivityBinding;
 import com.cdot.squirrel.ui.fragment.TreeFragment;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MainActivity extends AppCompatActivity {
     // AppCompatActivity is a subclass of androidx.fragment.app.FragmentActivity
@@ -25,41 +34,126 @@ public class MainActivity extends AppCompatActivity {
 
     final static long HOUR = 60 * 60 * 1000;
 
-    private String loadTestResource(String name) {
+    // Number of actions played into the hoard at once while it is loading. Each batch is
+    // played on the UI thread, so this is kept small enough not to stall it.
+    private static final int LOAD_BATCH = 500;
+
+    private InputStream openTestResource(String name) {
         ClassLoader classLoader = getClass().getClassLoader();
         // load from src/test/resources
         InputStream in = classLoader.getResourceAsStream(name);
         if (in == null)
             throw new Error("Could not load " + name);
-        ByteArrayOutputStream ouch = new ByteArrayOutputStream();
-        int ch;
-        try {
-            while ((ch = in.read()) != -1)
-                ouch.write(ch);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return ouch.toString();
+        return in;
     }
 
     Hoard mHoard;
+    // Thread the hoard is read on
+    private ExecutorService mLoader;
+    // Posts to the UI thread
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private ProgressBar mProgress;
+    // Number of actions played into the hoard while loading
+    private int mLoaded;
+    // Set when loading fails, to stop the loading thread
+    private volatile boolean mLoadFailed;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        try {
-             mHoard = new Hoard(new JSONObject(loadTestResource("hoard.json")));
-        } catch (JSONException je) {
-            throw new Error("Failed to parse JSON " + je);
-        }
         MainActivityBinding binding = MainActivityBinding.inflate(getLayoutInflater());
         setContentView(binding.getRoot());
+        mProgress = binding.loadProgress;
+        loadHoard("hoard.json");
+    }
+
+    @Override
+    protected void onDestroy() {
+        mLoader.shutdownNow();
+        super.onDestroy();
+    }
+
+    /**
+     * Read the hoard on a background thread. The tree is shown as soon as it has been read,
+     * and the actions that follow it are played into the hoard on the UI thread a batch at a
+     * time, so the hoard is only ever changed on the UI thread. Progress is shown as the number
+     * of actions played, out of the total if the hoard gives it. A hoard that can't be read,
+     * or whose actions conflict, stops the load and fails loudly.
+     *
+     * @param name name of the resource to load
+     */
+    private void loadHoard(String name) {
+        mLoader = Executors.newSingleThreadExecutor();
+        mLoaded = 0;
+        mLoadFailed = false;
+        mProgress.setIndeterminate(true);
+        mProgress.setVisibility(View.VISIBLE);
+        mLoader.execute(() -> {
+            try (InputStream is = openTestResource(name)) {
+                Reader r = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+                Hoard.read(r, LOAD_BATCH, new Hoard.Loader() {
+                    @Override // Hoard.Loader
+                    public void treeLoaded(Hoard hoard) {
+                        mHandler.post(() -> showHoard(hoard));
+                    }
+
+                    @Override // Hoard.Loader
+                    public boolean actionsLoaded(List<Action> actions, int total) {
+                        mHandler.post(() -> playLoaded(actions, total));
+                        return !mLoadFailed;
+                    }
+                });
+            } catch (IOException ioe) {
+                mHandler.post(() -> loadFailed("Failed to load hoard " + ioe));
+            }
+            mHandler.post(() -> mProgress.setVisibility(View.GONE));
+        });
+    }
+
+    // Play a batch of actions read by the loading thread
+    private void playLoaded(List<Action> actions, int total) {
+        if (mLoadFailed || isDestroyed())
+            return;
+        List<Hoard.ConflictException> e = mHoard.playBatch(actions, false);
+        if (e.size() > 0) {
+            for (Hoard.ConflictException ce : e)
+                Log.e(TAG, "Conflict loading hoard " + ce.getMessage());
+            loadFailed(e.size() + " conflicts loading hoard, first " + e.get(0).getMessage());
+            return;
+        }
+        mLoaded += actions.size();
+        if (total > 0) {
+            mProgress.setIndeterminate(false);
+            mProgress.setMax(total);
+            mProgress.setProgress(mLoaded);
+        }
+    }
+
+    // Stop loading, and fail loudly, as a hoard that can't be loaded completely mustn't be used
+    private void loadFailed(String message) {
+        mLoadFailed = true;
+        mProgress.setVisibility(View.GONE);
+        throw new Error(message);
+    }
+
+    // Start using a hoard that is still loading
+    private void showHoard(Hoard hoard) {
+        if (isDestroyed())
+            return;
+        mHoard = hoard;
+        mHoard.getHistory().setSpillDirectory(getCacheDir());
+        // Fragments restored from a previous instance were made without a hoard
+        FragmentManager fm = getSupportFragmentManager();
+        fm.popBackStack(null, FragmentManager.POP_BACK_STACK_INCLUSIVE);
         Fragment f = new TreeFragment();
-        FragmentTransaction tx = getSupportFragmentManager().beginTransaction();
-        tx.replace(R.id.fragment, f, TreeFragment.class.getName()).commit();
+        FragmentTransaction tx = fm.beginTransaction();
+        tx.replace(R.id.fragment, f, TreeFragment.class.getName()).commitAllowingStateLoss();
     }
 
+    /**
+     * @return the hoard, or null if it hasn't been loaded yet
+     */
     public Hoard getHoard() {
         return mHoard;
     }
@@ -78,4 +172,4 @@ public class MainActivity extends AppCompatActivity {
         ftx.addToBackStack(null);
         ftx.commit();
     }
-}
\ No newline at end of file
+}
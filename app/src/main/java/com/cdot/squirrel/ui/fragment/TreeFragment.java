@@ -16,25 +16,32 @@ import android.widget.SearchView;
 import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentTransaction;
 
-import com.cdot.squirrel.hoard.Action;
-import com.cdot.squirrel.hoard.Fork;
+import com.cdot.squirrel.hoard.ChangeSet;
 import com.cdot.squirrel.hoard.Hoard;
 import com.cdot.squirrel.hoard.HoardNode;
+import com.cdot.squirrel.hoard.SearchIndex;
 import com.cdot.squirrel.ui.R;
 import com.cdot.squirrel.ui.activity.MainActivity;
 import com.cdot.squirrel.ui.databinding.TreeFragmentBinding;
 import com.cdot.squirrel.ui.tree.TreeNode;
 import com.cdot.squirrel.ui.tree.TreeRootView;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Container for tree nodes
  */
-public class TreeFragment extends Fragment implements Hoard.ChangeListener{
+public class TreeFragment extends Fragment implements Hoard.BatchListener {
     private static final String TAG = "TreeFragment";
 
+    // Maximum number of search results shown
+    private static final int MAX_RESULTS = 20;
+
     private TreeRootView mTreeNodeView;
     private Hoard mHoard;
     private TreeNode mTreeRoot;
+    private SearchIndex mSearchIndex;
 
     @Override // Fragment
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
@@ -43,15 +50,20 @@ public class TreeFragment extends Fragment implements Hoard.ChangeListener{
         TreeFragmentBinding binding = TreeFragmentBinding.inflate(inflater, container, false);
         View rootView = binding.getRoot();
 
-        // Enable action menu in this fragment
-        setHasOptionsMenu(true);
-
         // Construct the model
-        mTreeRoot = new TreeNode(null);
         MainActivity act = (MainActivity) getActivity();
         mHoard = act.getHoard();
-        mHoard.addChangeListener(this);
-        populateTree(mTreeRoot, (Fork)mHoard.getRoot());
+        if (mHoard == null)
+            // Restored before the hoard has loaded; MainActivity will replace this fragment
+            return rootView;
+
+        // Enable action menu in this fragment
+        setHasOptionsMenu(true);
+
+        mHoard.addBatchListener(this);
+        // TreeNodes are made as folders are opened
+        mTreeRoot = new TreeNode(mHoard.getRoot());
+        mSearchIndex = new SearchIndex(mHoard, false);
 
         // Construct the view
         mTreeNodeView = new TreeRootView(act, mTreeRoot);
@@ -66,6 +78,15 @@ public class TreeFragment extends Fragment implements Hoard.ChangeListener{
         return rootView;
     }
 
+    @Override // Fragment
+    public void onDestroyView() {
+        if (mHoard != null) {
+            mHoard.removeBatchListener(this);
+            mSearchIndex.close();
+        }
+        super.onDestroyView();
+    }
+
     @Override // AppCompatActivity
     public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
         inflater.inflate(R.menu.toolbar, menu);
@@ -79,15 +100,13 @@ public class TreeFragment extends Fragment implements Hoard.ChangeListener{
         searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
             @Override
             public boolean onQueryTextChange(String newText) {
-                Log.i("onQueryTextChange", newText);
-
+                showMatches(newText);
                 return true;
             }
 
             @Override
             public boolean onQueryTextSubmit(String query) {
-                Log.i("onQueryTextSubmit", query);
-
+                showMatches(query);
                 return true;
             }
         });
@@ -108,6 +127,12 @@ public class TreeFragment extends Fragment implements Hoard.ChangeListener{
                 } catch (Hoard.ConflictException ce) {
                 }
                 return true;
+            case R.id.redo:
+                try {
+                    mHoard.redo();
+                } catch (Hoard.ConflictException ce) {
+                }
+                return true;
             case R.id.save:
             case R.id.settings:
                 // Switch to settings fragment
@@ -133,75 +158,75 @@ public class TreeFragment extends Fragment implements Hoard.ChangeListener{
     @Override // Fragment
     public void onPrepareOptionsMenu(Menu menu) {
         menu.findItem(R.id.undo).setVisible(mHoard.canUndo() > 0);
+        menu.findItem(R.id.redo).setVisible(mHoard.canRedo() > 0);
         menu.findItem(R.id.save).setVisible(mHoard.requiresSave());
 
         super.onPrepareOptionsMenu(menu);
     }
 
-    /**
-     * Fill the given treenode with child treenodes
-     * @param tnode TreeNode to fill
-     * @param fork hoard node we are modelling
-     */
-    private void populateTree(TreeNode tnode, Fork fork) {
-        for (HoardNode hchild : fork.getChildren().values()) {
-            TreeNode tchild = new TreeNode(hchild);
-            tnode.addChild(tchild);
-            if (hchild instanceof Fork)
-                populateTree(tchild, (Fork) hchild);
-        }
+    @Override // Fragment
+    public void onLowMemory() {
+        super.onLowMemory();
+        if (mTreeNodeView != null)
+            mTreeNodeView.trimMemory();
     }
 
     @Override // Fragment
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
-        outState.putString("tState", mTreeNodeView.getSaveState());
+        if (mTreeNodeView != null)
+            outState.putString("tState", mTreeNodeView.getSaveState());
+    }
+
+    /**
+     * Show the nodes that match a search, replacing the result of the last search
+     * @param query the search, empty to clear it
+     */
+    private void showMatches(String query) {
+        final List<HoardNode> found = new ArrayList<>();
+        mSearchIndex.search(query, (path, node) -> {
+            found.add(node);
+            return found.size() < MAX_RESULTS;
+        });
+        mTreeNodeView.showMatches(found);
     }
 
-    @Override // implements Hoard.ChangeListener
-    public void actionPlayed(Action act, HoardNode parent, HoardNode node, HoardNode newParent) {
+    // Find the TreeNode for a HoardNode, or null if it hasn't been made
+    private TreeNode findTreeNode(HoardNode n) {
+        return mTreeRoot.findTreeNode(n);
+    }
+
+    @Override // implements Hoard.BatchListener
+    public void changesPlayed(ChangeSet changes) {
         TreeNode tn1, tn2;
-        switch (act.type) {
-            case Action.NEW:
-                // node = node added
-                // parent = node it was added to
-                tn1 = mTreeRoot.findTreeNode(parent);
-                tn2 = new TreeNode(node);
-                tn1.addChild(tn2);
-                mTreeNodeView.addNode(tn1, tn2);
-                break;
-
-            case Action.SET_ALARM:
-            case Action.CONSTRAIN:
-            case Action.EDIT:
-            case Action.RENAME:
-                tn1 = mTreeRoot.findTreeNode(node);
-                tn1.mTreeNodeView.updateView();
-                break;
-
-            case Action.DELETE:
-                tn1 = mTreeRoot.findTreeNode(node);
+        for (HoardNode node : changes.getMoved()) {
+            tn2 = findTreeNode(node);
+            tn1 = findTreeNode(node.getParent());
+            if (tn2 != null && tn1 != null)
+                mTreeNodeView.moveNode(tn2, tn1);
+            else if (tn2 != null)
+                // Moved into a folder whose children haven't been made
+                mTreeNodeView.removeNode(tn2);
+            else if (tn1 != null)
+                mTreeNodeView.addNode(tn1, node);
+        }
+
+        for (HoardNode node : changes.getRemoved()) {
+            tn1 = findTreeNode(node);
+            if (tn1 != null)
                 mTreeNodeView.removeNode(tn1);
-                tn2 = mTreeRoot.findTreeNode(parent);
-                if (tn2 != null) // will be null if tn1 is a root node
-                    tn2.mTreeNodeView.updateView();
-                break;
+        }
 
-            case Action.MOVE:
-                tn2 = mTreeRoot.findTreeNode(node); // remove from old parent
-                mTreeNodeView.removeNode(tn2);
-                tn1 = mTreeRoot.findTreeNode(newParent);
-                tn1.addChild(tn2);
-                mTreeNodeView.addNode(tn1, tn2);
-                break;
-
-            case Action.INSERT:
-                // node = node added
-                // parent = node it was added to
-                // TODO: create new subtree
-                break;
-            default:
-                throw new Error("Unsupported action " + act);
+        for (HoardNode node : changes.getAdded()) {
+            tn1 = findTreeNode(node.getParent());
+            if (tn1 != null)
+                mTreeNodeView.addNode(tn1, node);
+        }
+
+        for (HoardNode node : changes.getChanged()) {
+            tn1 = findTreeNode(node);
+            if (tn1 != null)
+                mTreeNodeView.updateNode(tn1);
         }
     }
 }
@@ -1,14 +1,19 @@
 package com.cdot.squirrel.ui.tree;
 
+import com.cdot.squirrel.hoard.Fork;
 import com.cdot.squirrel.hoard.HoardNode;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
- * A TreeNode is the link between a HoarfdNode and the view used to render that node.
- * There is one TreeNode for each HoardNode.
+ * A TreeNode is the link between a HoardNode and the view used to render that node.
+ * TreeNodes for the children of a folder are only made when they are needed, normally when
+ * the folder is first opened, and those under closed folders can be discarded to save memory.
+ * There is at most one TreeNode for each HoardNode.
  */
 public class TreeNode {
     public static final String NODES_ID_SEPARATOR = ":";
@@ -16,23 +21,72 @@ public class TreeNode {
     private int mId;
     private int mLastId = 0;
     public TreeNode mParent;
-    private final List<TreeNode> mChildren;
-    public TreeNodeView mTreeNodeView;
+    // null until the children are made
+    private List<TreeNode> mChildren;
     public HoardNode mHoardNode;
     public boolean mExpanded;
+    // The TreeNode for each HoardNode that has one, shared by all the nodes in the tree
+    private final Map<HoardNode, TreeNode> mNodes;
 
+    /**
+     * Construct the root of a tree
+     * @param hnode the root of the hoard
+     */
     public TreeNode(HoardNode hnode) {
-        mChildren = new ArrayList<>();
+        this(hnode, new IdentityHashMap<>());
+    }
+
+    private TreeNode(HoardNode hnode, Map<HoardNode, TreeNode> nodes) {
         mHoardNode = hnode;
+        mNodes = nodes;
+        mNodes.put(hnode, this);
     }
 
-    public void addChild(TreeNode childNode) {
+    /**
+     * Add a new child for a node added to the hoard. If the children of this node haven't
+     * been made yet, nothing is done, as the child will be made with the rest.
+     * @param hnode the node added
+     * @return the new child, or null
+     */
+    public TreeNode addChild(HoardNode hnode) {
+        if (mChildren == null)
+            return null;
+        TreeNode child = mNodes.get(hnode);
+        if (child != null)
+            // Already made
+            return child;
+        child = new TreeNode(hnode, mNodes);
+        addChild(child);
+        return child;
+    }
+
+    /**
+     * Add a child that is already in the tree, such as one that has been moved. If the
+     * children of this node haven't been made yet, the child is forgotten instead, as it
+     * will be made again with the rest.
+     * @param childNode the child
+     * @return true if the child was added
+     */
+    boolean addChild(TreeNode childNode) {
+        if (mChildren == null) {
+            childNode.forget();
+            return false;
+        }
         childNode.mParent = this;
         childNode.mId = ++mLastId;
         mChildren.add(childNode);
+        return true;
     }
 
+    /**
+     * Remove a child from this node. It is still in the tree, and can be added somewhere
+     * else, until forget() is called.
+     * @param child the child to remove
+     * @return the index of the child, or -1 if it isn't a child of this node
+     */
     public int deleteChild(TreeNode child) {
+        if (mChildren == null)
+            return -1;
         for (int i = 0; i < mChildren.size(); i++) {
             if (child.mId == mChildren.get(i).mId) {
                 mChildren.remove(i);
@@ -42,24 +96,66 @@ public class TreeNode {
         return -1;
     }
 
+    /**
+     * Remove this node and everything under it from the tree
+     */
+    void forget() {
+        mNodes.remove(mHoardNode);
+        discardChildren();
+    }
+
+    /**
+     * Discard the children of this node, which will be made again when they are needed
+     */
+    void discardChildren() {
+        if (mChildren == null)
+            return;
+        for (TreeNode child : mChildren)
+            child.forget();
+        mChildren = null;
+        mLastId = 0;
+    }
+
+    /**
+     * Discard the children of all closed folders under this node
+     */
+    void discardClosed() {
+        if (mChildren == null)
+            return;
+        for (TreeNode child : mChildren) {
+            if (child.mExpanded)
+                child.discardClosed();
+            else
+                child.discardChildren();
+        }
+    }
+
+    /**
+     * Get the children of this node, making them if needed
+     * @return the children
+     */
     public List<TreeNode> getChildren() {
+        if (mChildren == null) {
+            mChildren = new ArrayList<>();
+            if (mHoardNode instanceof Fork) {
+                for (HoardNode hchild : ((Fork) mHoardNode).getChildren().values()) {
+                    TreeNode child = new TreeNode(hchild, mNodes);
+                    child.mParent = this;
+                    child.mId = ++mLastId;
+                    mChildren.add(child);
+                }
+            }
+        }
         return Collections.unmodifiableList(mChildren);
     }
 
     /**
      * Find the TreeNode that contains the given HoardNode
      * @param n node to search for
-     * @return the tree node found
+     * @return the tree node found, or null if there isn't one
      */
     public TreeNode findTreeNode(HoardNode n) {
-        if (mHoardNode == n)
-            return this;
-        for (TreeNode tkid : getChildren()) {
-            TreeNode found = tkid.findTreeNode(n);
-            if (found != null)
-                return found;
-        }
-        return null;
+        return mNodes.get(n);
     }
 
     /**
@@ -79,6 +175,17 @@ public class TreeNode {
         return path.toString();
     }
 
+    /**
+     * Get the depth of the node in the tree
+     * @return 0 for the root, 1 for its children, and so on
+     */
+    public int getDepth() {
+        int depth = 0;
+        for (TreeNode node = mParent; node != null; node = node.mParent)
+            depth++;
+        return depth;
+    }
+
     public TreeNode getRoot() {
         TreeNode root = this;
         while (root.mParent != null) {
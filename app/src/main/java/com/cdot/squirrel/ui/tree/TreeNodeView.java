@@ -6,9 +6,6 @@ import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.view.animation.Animation;
-import android.view.animation.Transformation;
-import android.widget.LinearLayout;
 import android.widget.PopupMenu;
 import android.widget.Toast;
 
@@ -27,58 +24,76 @@ import com.cdot.squirrel.ui.fragment.EditNodeFragment;
 import com.cdot.squirrel.ui.fragment.PickFragment;
 
 /**
- * Holder for a View of the content (name, value) of a hoard node
+ * Holder for the View of one row of the tree, showing the content (name, value) of a hoard
+ * node. Rows are recycled as the tree is scrolled, so the node shown changes.
  */
 public class TreeNodeView {
     private static final String TAG = "TreeNodeView";
 
-    private TreeNodeViewBinding mBinding;
+    private final TreeNodeViewBinding mBinding;
+    // Indent per level of the tree, in pixels
+    private final int mIndent;
 
     TreeNode mTreeNode;
     TreeRootView mRootView;
 
-    public TreeNodeView(TreeRootView rootView, TreeNode node) {
+    TreeNodeView(TreeRootView rootView, final LayoutInflater inflater, ViewGroup parent) {
         mRootView = rootView;
-        mTreeNode = node;
-    }
-
-    public View createView(final LayoutInflater inflater) {
-        if (mBinding != null)
-            return mBinding.getRoot();
+        mBinding = TreeNodeViewBinding.inflate(inflater, parent, false);
+        mBinding.getRoot().setTag(this);
+        mIndent = (int) (20 * rootView.getContext().getResources().getDisplayMetrics().density);
 
-        mBinding = TreeNodeViewBinding.inflate(inflater, null, false);
-
-        HoardNode hnode = mTreeNode.mHoardNode;
-        if (hnode instanceof Leaf)
-            mBinding.openCloseIcon.setVisibility(View.GONE);
-        else {
-            mBinding.nodeValue.setVisibility(View.GONE);
-            mBinding.openCloseIcon.setOnClickListener(view1 -> mTreeNode.mTreeNodeView.toggle());
-        }
+        mBinding.openCloseIcon.setOnClickListener(view -> mRootView.toggle(mTreeNode));
 
         mBinding.alarm.setOnClickListener(aview -> {
-            Toast toast = Toast.makeText(mRootView.getContext(), hnode.getAlarm().toString(), Toast.LENGTH_SHORT);
+            Toast toast = Toast.makeText(mRootView.getContext(), mTreeNode.mHoardNode.getAlarm().toString(), Toast.LENGTH_SHORT);
             toast.show();
         });
 
-        updateView();
+        mBinding.getRoot().setOnClickListener(v -> {
+            Toast toast = Toast.makeText(mRootView.getContext(), mTreeNode.mHoardNode.toString(), Toast.LENGTH_SHORT);
+            toast.show();
+        });
 
-        return mBinding.getRoot();
+        mBinding.getRoot().setOnLongClickListener(view -> {
+            PopupMenu popupMenu = new PopupMenu(mRootView.getContext(), mBinding.getRoot());
+            if (mTreeNode.mHoardNode instanceof Leaf)
+                popupMenu.inflate(R.menu.leaf_node);
+            else
+                popupMenu.inflate(R.menu.fork_node);
+            popupMenu.setOnMenuItemClickListener(menuItem -> onMenuItemClick(menuItem.getItemId()));
+            popupMenu.show();
+            return true;
+        });
     }
 
     /**
-     * Get the view of the child nodes
-     * @return the layout for the child nodes
+     * Get the view of the row
+     * @return the view
      */
-    public ViewGroup getChildrenView() {
-        return mBinding.nodeChildren;
+    public View getView() {
+        return mBinding.getRoot();
     }
 
-    public void updateView() {
-        HoardNode hnode = mTreeNode.mHoardNode;
-        mBinding.nodeName.setText(hnode.getName());
-        if (hnode instanceof Leaf)
+    /**
+     * Show a node in this row
+     * @param node the node to show
+     */
+    void bind(TreeNode node) {
+        mTreeNode = node;
+        mBinding.getRoot().setPaddingRelative((node.getDepth() - 1) * mIndent, 0, 0, 0);
+        HoardNode hnode = node.mHoardNode;
+        if (hnode instanceof Leaf) {
+            mBinding.openCloseIcon.setVisibility(View.GONE);
+            mBinding.nodeValue.setVisibility(View.VISIBLE);
             mBinding.nodeValue.setText(((Leaf) hnode).getData());
+        } else {
+            mBinding.openCloseIcon.setVisibility(View.VISIBLE);
+            mBinding.openCloseIcon.setImageResource(node.mExpanded ? R.drawable.ic_folder_open : R.drawable.ic_folder_closed);
+            mBinding.nodeValue.setVisibility(View.GONE);
+        }
+        mBinding.nodeName.setText(hnode.getName());
+        mBinding.nodeName.setBackgroundResource(mRootView.isMatch(node) ? R.color.search_match : 0);
         mBinding.alarm.setVisibility((hnode.getAlarm() == null) ? View.GONE : View.VISIBLE);
     }
 
@@ -151,154 +166,4 @@ public class TreeNodeView {
         }
         return true;
     }
-
-    public void toggleIcon(boolean active) {
-        if (mBinding != null)
-            mBinding.openCloseIcon.setImageResource(active ? R.drawable.ic_folder_open : R.drawable.ic_folder_closed);
-    }
-
-    void inflate() {
-        if (mBinding == null)
-            return;
-        final View v = getChildrenView();
-        v.measure(LinearLayout.LayoutParams.MATCH_PARENT, LinearLayout.LayoutParams.WRAP_CONTENT);
-        final int targetHeight = v.getMeasuredHeight();
-
-        v.getLayoutParams().height = 0;
-        v.setVisibility(View.VISIBLE);
-        Animation a = new Animation() {
-            @Override
-            protected void applyTransformation(float interpolatedTime, Transformation t) {
-                v.getLayoutParams().height = interpolatedTime == 1
-                        ? LinearLayout.LayoutParams.WRAP_CONTENT
-                        : (int) (targetHeight * interpolatedTime);
-                v.requestLayout();
-            }
-
-            @Override
-            public boolean willChangeBounds() {
-                return true;
-            }
-        };
-
-        // 1dp/ms
-        a.setDuration((int) (targetHeight / v.getContext().getResources().getDisplayMetrics().density));
-        v.startAnimation(a);
-    }
-
-    void deflate() {
-        // Animate the collapse of the children
-        final View v = getChildrenView();
-        final int initialHeight = v.getMeasuredHeight();
-
-        Animation a = new Animation() {
-            @Override
-            protected void applyTransformation(float interpolatedTime, Transformation t) {
-                if (interpolatedTime == 1) {
-                    v.setVisibility(View.GONE);
-                } else {
-                    v.getLayoutParams().height = initialHeight - (int) (initialHeight * interpolatedTime);
-                    v.requestLayout();
-                }
-            }
-
-            @Override
-            public boolean willChangeBounds() {
-                return true;
-            }
-        };
-
-        // 1dp/ms
-        a.setDuration((int) (initialHeight / v.getContext().getResources().getDisplayMetrics().density));
-        v.startAnimation(a);
-    }
-
-    /**
-     * Expand (open|) the given node
-     *
-     * @param includeSubnodes whether to open all nodes lower in the tree
-     */
-    void expand(boolean includeSubnodes) {
-        ViewGroup container = getChildrenView();
-        container.removeAllViews();
-        toggleIcon(true);
-
-        // Populate the container
-        for (final TreeNode n : mTreeNode.getChildren()) {
-            addChildView(n);
-
-            if (n.mExpanded || includeSubnodes)
-                n.mTreeNodeView.expand(includeSubnodes);
-        }
-
-        inflate();
-
-        mTreeNode.mExpanded = true;
-    }
-
-    /**
-     * Collapse (close) the given node
-     *
-     * @param includeSubnodes whether to close all nodes lower in the tree
-     */
-    void collapse(final boolean includeSubnodes) {
-        deflate();
-        toggleIcon(false);
-
-        if (includeSubnodes) {
-            for (TreeNode n : mTreeNode.getChildren()) {
-                n.mTreeNodeView.collapse(includeSubnodes);
-            }
-        }
-        mTreeNode.mExpanded = false;
-    }
-
-    /**
-     * Add a view for the given node - which must be a child of the treenode we are a view of
-     * @param childTreeNode child not to add a view of
-     */
-    void addChildView(final TreeNode childTreeNode) {
-        TreeNodeView childTreeView = childTreeNode.mTreeNodeView;
-        if (childTreeView != null)
-            Log.e(TAG, "Trying to move a view without decoupling it first");
-        childTreeView = childTreeNode.mTreeNodeView = new TreeNodeView(mRootView, childTreeNode);
-        childTreeNode.mTreeNodeView = childTreeView;
-        final LayoutInflater inflater = LayoutInflater.from(mRootView.getContext());
-        final View childView = childTreeView.createView(inflater);
-        getChildrenView().addView(childView);
-
-        childView.setOnClickListener(v -> {
-            Toast toast = Toast.makeText(mRootView.getContext(), childTreeNode.mHoardNode.toString(), Toast.LENGTH_SHORT);
-            toast.show();
-        });
-
-        final TreeNodeView cnv = childTreeView;
-        childView.setOnLongClickListener(view -> {
-            PopupMenu popupMenu = new PopupMenu(mRootView.getContext(), cnv.mBinding.getRoot());
-            if (childTreeNode.mHoardNode instanceof Leaf)
-                popupMenu.inflate(R.menu.leaf_node);
-            else
-                popupMenu.inflate(R.menu.fork_node);
-            popupMenu.setOnMenuItemClickListener(menuItem -> cnv.onMenuItemClick(menuItem.getItemId()));
-            popupMenu.show();
-            return true;
-        });
-    }
-
-    /**
-     * Toggle open/closed state of the node
-     *
-     * @return this, to allow chaining
-     */
-    public void toggle() {
-        if (mTreeNode.mExpanded) {
-            collapse(false);
-        } else {
-            expand(false);
-        }
-    }
-
-    public void removeChildView(int index) {
-        getChildrenView().removeViewAt(index);
-    }
 }
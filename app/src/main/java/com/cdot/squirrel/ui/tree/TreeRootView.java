@@ -5,21 +5,62 @@ import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.BaseAdapter;
 
+import com.cdot.squirrel.hoard.HoardNode;
 import com.cdot.squirrel.ui.databinding.TreeRootViewBinding;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Set;
 
 /**
- * A container for a tree view
+ * A container for a tree view. The tree is shown as a list of rows, one for each node in an
+ * open folder, and only the rows that are on screen have views. Opening and closing a folder
+ * inserts or removes the range of rows below it.
  */
-public class TreeRootView extends TreeNodeView {
+public class TreeRootView {
     private static final String NODES_PATH_SEPARATOR = ";";
 
-    private Context mContext;
+    private final Context mContext;
+    private final TreeNode mTreeNode;
     private TreeRootViewBinding mRootBinding;
+    // Nodes shown, in the order they appear
+    private final List<TreeNode> mRows = new ArrayList<>();
+    // Nodes matching the current search
+    private final Set<TreeNode> mMatches = Collections.newSetFromMap(new IdentityHashMap<>());
+    // Folders opened to show the matches, in the order they were opened
+    private final List<TreeNode> mOpenedForSearch = new ArrayList<>();
+
+    private final BaseAdapter mAdapter = new BaseAdapter() {
+        @Override // BaseAdapter
+        public int getCount() {
+            return mRows.size();
+        }
+
+        @Override // BaseAdapter
+        public Object getItem(int position) {
+            return mRows.get(position);
+        }
+
+        @Override // BaseAdapter
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override // BaseAdapter
+        public View getView(int position, View convertView, ViewGroup parent) {
+            TreeNodeView row = (convertView == null)
+                    ? new TreeNodeView(TreeRootView.this, LayoutInflater.from(mContext), parent)
+                    : (TreeNodeView) convertView.getTag();
+            row.bind(mRows.get(position));
+            return row.getView();
+        }
+    };
 
     /**
      * Construct a view tree for the given context and tree root
@@ -28,32 +69,116 @@ public class TreeRootView extends TreeNodeView {
      * @param root    the root of the TreeNode hierarchy
      */
     public TreeRootView(Context context, TreeNode root) {
-        super(null, root);
-        mRootView = this; // can't pass this to super
         mContext = context;
+        mTreeNode = root;
     }
 
     public Context getContext() {
         return mContext;
     }
 
-    @Override
-    public ViewGroup getChildrenView() {
-        return mRootBinding.treeRoot;
-    }
-
-   /**
+    /**
      * Get the View for the root of a tree
      *
      * @return a View
      */
     public View createView(LayoutInflater inflater) {
         mRootBinding = TreeRootViewBinding.inflate(inflater, null, false);
-        mTreeNode.mTreeNodeView = this;
-        expand(false);
+        mRootBinding.treeRoot.setAdapter(mAdapter);
+        mTreeNode.mExpanded = true;
+        rebuild();
         return mRootBinding.getRoot();
     }
 
+    // Add the rows shown below an open folder
+    private void addRows(TreeNode node, List<TreeNode> rows) {
+        for (TreeNode n : node.getChildren()) {
+            rows.add(n);
+            if (n.mExpanded)
+                addRows(n, rows);
+        }
+    }
+
+    // Make the rows again from scratch
+    private void rebuild() {
+        mRows.clear();
+        addRows(mTreeNode, mRows);
+        mAdapter.notifyDataSetChanged();
+    }
+
+    // Index of the row after the last row below the row at i
+    private int endOfRows(int i) {
+        int depth = mRows.get(i).getDepth();
+        int end = i + 1;
+        while (end < mRows.size() && mRows.get(end).getDepth() > depth)
+            end++;
+        return end;
+    }
+
+    // Is a node shown, or about to be shown, in a row?
+    private boolean isShown(TreeNode node) {
+        for (TreeNode n = node.mParent; n != null; n = n.mParent)
+            if (!n.mExpanded)
+                return false;
+        return true;
+    }
+
+    /**
+     * Open a folder, showing its children
+     *
+     * @param node the folder
+     */
+    void expand(TreeNode node) {
+        if (node.mExpanded)
+            return;
+        node.mExpanded = true;
+        int i = mRows.indexOf(node);
+        if (i >= 0) {
+            List<TreeNode> rows = new ArrayList<>();
+            addRows(node, rows);
+            mRows.addAll(i + 1, rows);
+        }
+        mAdapter.notifyDataSetChanged();
+    }
+
+    /**
+     * Close a folder, hiding everything below it
+     *
+     * @param node the folder
+     */
+    void collapse(TreeNode node) {
+        if (!node.mExpanded)
+            return;
+        node.mExpanded = false;
+        int i = mRows.indexOf(node);
+        if (i >= 0)
+            mRows.subList(i + 1, endOfRows(i)).clear();
+        mAdapter.notifyDataSetChanged();
+    }
+
+    /**
+     * Toggle open/closed state of a folder
+     *
+     * @param node the folder
+     */
+    void toggle(TreeNode node) {
+        if (node.mExpanded)
+            collapse(node);
+        else
+            expand(node);
+    }
+
+    /**
+     * Show a change to the content of a node
+     *
+     * @param node the node
+     */
+    public void updateNode(TreeNode node) {
+        // Only rows on screen are bound again
+        if (isShown(node))
+            mAdapter.notifyDataSetChanged();
+    }
+
     /**
      * Get a string that can be used to restore the open/closed state of the tree
      *
@@ -83,52 +208,162 @@ public class TreeRootView extends TreeNodeView {
     /**
      * Restore the open/closed state of the tree from a string generated by getSaveState()
      *
-     * @return thid, to allow chaining
+     * @return this, to allow chaining
      */
     public TreeRootView restoreState(String saveState) {
         if (!TextUtils.isEmpty(saveState)) {
-            collapse(true);
             final String[] openNodesArray = saveState.split(NODES_PATH_SEPARATOR);
             final Set<String> openNodes = new HashSet<>(Arrays.asList(openNodesArray));
             restoreState(mTreeNode, openNodes);
+            rebuild();
         }
         return this;
     }
 
-    // Recursive, do the work of public restoreState
+    // Recursive, do the work of public restoreState. Only open folders are visited, so
+    // the children of closed folders aren't made.
     private TreeRootView restoreState(TreeNode node, Set<String> openNodes) {
         for (TreeNode n : node.getChildren()) {
-            if (openNodes.contains(n.getPath())) {
-                n.mTreeNodeView.expand(false);
+            n.mExpanded = openNodes.contains(n.getPath());
+            if (n.mExpanded)
                 restoreState(n, openNodes);
-            }
         }
         return this;
     }
 
+    /**
+     * Discard the TreeNodes under closed folders, which will be made again when the folders
+     * are opened
+     */
+    public void trimMemory() {
+        mTreeNode.discardClosed();
+    }
+
+    /**
+     * Expand the folders containing a node, so it can be seen
+     *
+     * @param hnode the node to show
+     * @return the TreeNode for the node, or null if it couldn't be shown
+     */
+    public TreeNode showNode(HoardNode hnode) {
+        return showNode(hnode, null);
+    }
+
+    // Show a node, adding the folders that had to be opened to opened
+    private TreeNode showNode(HoardNode hnode, List<TreeNode> opened) {
+        List<HoardNode> folders = new ArrayList<>();
+        for (HoardNode n = hnode.getParent(); n != null && n != mTreeNode.mHoardNode; n = n.getParent())
+            folders.add(n);
+        // Open from the top down, as each folder's TreeNode is made when its parent is opened
+        for (int i = folders.size() - 1; i >= 0; i--) {
+            TreeNode tn = mTreeNode.findTreeNode(folders.get(i));
+            if (tn == null)
+                return null;
+            if (!tn.mExpanded && opened != null)
+                opened.add(tn);
+            expand(tn);
+        }
+        return mTreeNode.findTreeNode(hnode);
+    }
+
+    /**
+     * Show the result of a search. Matching nodes are highlighted, and the folders containing
+     * them are opened, and the first is scrolled to. Folders opened for the previous search
+     * are closed again first, so the tree goes back to how it was before searching when the
+     * search is cleared.
+     *
+     * @param matches nodes matching the search, empty to clear the search
+     */
+    public void showMatches(List<HoardNode> matches) {
+        // Close in reverse order, so each folder's row is still there when it is closed
+        for (int i = mOpenedForSearch.size() - 1; i >= 0; i--)
+            collapse(mOpenedForSearch.get(i));
+        mOpenedForSearch.clear();
+        mMatches.clear();
+        TreeNode first = null;
+        for (HoardNode hnode : matches) {
+            TreeNode tn = showNode(hnode, mOpenedForSearch);
+            if (tn != null) {
+                mMatches.add(tn);
+                if (first == null)
+                    first = tn;
+            }
+        }
+        mAdapter.notifyDataSetChanged();
+        if (first != null)
+            mRootBinding.treeRoot.setSelection(mRows.indexOf(first));
+    }
+
+    /**
+     * @param node a node
+     * @return true if the node matches the current search
+     */
+    boolean isMatch(TreeNode node) {
+        return mMatches.contains(node);
+    }
+
     //Add / Remove
 
-    public void addNode(TreeNode parent, final TreeNode nodeToAdd) {
-        // Add to the treenode hierarchy
-        parent.addChild(nodeToAdd);
-        if (parent.mExpanded)
-            // Make a view
-            parent.mTreeNodeView.addChildView(nodeToAdd);
+    // Add rows for a node just added to parent
+    private void addRows(TreeNode parent, TreeNode node) {
+        if (parent.mExpanded && isShown(parent)) {
+            // Add rows at the end of the parent's rows
+            int at = (parent == mTreeNode) ? mRows.size() : endOfRows(mRows.indexOf(parent));
+            List<TreeNode> rows = new ArrayList<>();
+            rows.add(node);
+            if (node.mExpanded)
+                addRows(node, rows);
+            mRows.addAll(at, rows);
+            mAdapter.notifyDataSetChanged();
+        }
     }
 
+    // Remove the rows for a node and everything under it
+    private void removeRows(TreeNode node) {
+        int i = mRows.indexOf(node);
+        if (i >= 0) {
+            mRows.subList(i, endOfRows(i)).clear();
+            mAdapter.notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Show a node added to the hoard
+     *
+     * @param parent     TreeNode for the folder it was added to
+     * @param hnodeToAdd the node added
+     */
+    public void addNode(TreeNode parent, HoardNode hnodeToAdd) {
+        TreeNode nodeToAdd = parent.addChild(hnodeToAdd);
+        if (nodeToAdd != null)
+            addRows(parent, nodeToAdd);
+    }
+
+    /**
+     * Show a node moved to another folder
+     *
+     * @param node      the node moved
+     * @param newParent TreeNode for the folder it was moved to
+     */
+    public void moveNode(TreeNode node, TreeNode newParent) {
+        removeRows(node);
+        if (node.mParent != null)
+            node.mParent.deleteChild(node);
+        if (newParent.addChild(node))
+            addRows(newParent, node);
+    }
+
+    /**
+     * Remove a node removed from the hoard
+     *
+     * @param node the node removed
+     */
     public void removeNode(TreeNode node) {
         if (node.mParent != null) {
-            TreeNode parent = node.mParent;
+            removeRows(node);
             // Remove from the treenode hierarchy
-            int index = parent.deleteChild(node);
-            if (parent.mExpanded && index >= 0) {
-                // Remove the view. Note that the view is retained, so if this
-                // node is subsequently re-attached elsewhere, it does not have to
-                // be reconstructed.
-                final TreeNodeView pv = parent.mTreeNodeView;
-                if (pv != null)
-                    pv.removeChildView(index);
-            }
+            node.mParent.deleteChild(node);
+            node.forget();
         }
     }
 }
@@ -2,6 +2,7 @@ package com.cdot.squirrel.crypto;
 
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -9,9 +10,16 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 
 public class AESUnitTest {
@@ -141,4 +149,258 @@ public class AESUnitTest {
         run_tests(new AES_Reference(), new AES_Java(), ascii_pass, 128);
         run_tests(new AES_Reference(), new AES_Java(), long_pass, 256);
     }
+
+    @Test
+    public void Table_Table() {
+        run_tests(new AES_Table(), new AES_Table(), ascii_pass, 128);
+        run_tests(new AES_Table(), new AES_Table(), unicode_pass, 192);
+        run_tests(new AES_Table(), new AES_Table(), long_pass, 256);
+    }
+
+    @Test
+    public void Table_Reference() {
+        run_tests(new AES_Table(), new AES_Reference(), unicode_pass, 128);
+        run_tests(new AES_Table(), new AES_Reference(), long_pass, 192);
+        run_tests(new AES_Table(), new AES_Reference(), ascii_pass, 256);
+    }
+
+    @Test
+    public void Reference_Table() {
+        run_tests(new AES_Reference(), new AES_Table(), long_pass, 128);
+        run_tests(new AES_Reference(), new AES_Table(), ascii_pass, 192);
+        run_tests(new AES_Reference(), new AES_Table(), unicode_pass, 256);
+    }
+
+    @Test
+    public void Table_Java() {
+        run_tests(new AES_Table(), new AES_Java(), ascii_pass, 128);
+        run_tests(new AES_Java(), new AES_Table(), long_pass, 256);
+    }
+
+    @Test
+    public void Table_block() {
+        // The table-driven engine must match the reference block cipher exactly
+        Random r = new Random(12345);
+        for (int nBytes = 16; nBytes <= 32; nBytes += 8) {
+            byte[] key = new byte[nBytes];
+            byte[] block = new byte[16];
+            byte[] out = new byte[16];
+            for (int i = 0; i < 100; i++) {
+                r.nextBytes(key);
+                r.nextBytes(block);
+                byte[][] ks = Aes.keyExpansion(key);
+                int[] w = AesEngine.keySchedule(key);
+                for (int j = 0; j < ks.length; j++)
+                    assertEquals(((ks[j][0] & 0xFF) << 24) | ((ks[j][1] & 0xFF) << 16)
+                            | ((ks[j][2] & 0xFF) << 8) | (ks[j][3] & 0xFF), w[j]);
+                AesEngine.encryptBlock(w, block, 0, out, 0);
+                assertArrayEquals(Aes.cipher(block, ks), out);
+            }
+        }
+    }
+
+    @Test
+    public void Table_Reference_long_counter() {
+        // Long enough for the counter to carry past the low 16 bits, where the
+        // reference carry propagation has to be exactly mirrored
+        byte[] plaintext = new byte[1200000];
+        new Random(54321).nextBytes(plaintext);
+        byte[] ciphertext = new AES_Table().encrypt(plaintext, ascii_pass, 256);
+        assertArrayEquals(plaintext, new AES_Reference().decrypt(ciphertext, ascii_pass, 256));
+        ciphertext = new AES_Reference().encrypt(plaintext, unicode_pass, 128);
+        assertArrayEquals(plaintext, new AES_Table().decrypt(ciphertext, unicode_pass, 128));
+    }
+
+    private void stream_round_trip(Aes enc, Aes dec, String pass, int nBits) {
+        byte[] plaintext = loadTestResource("large.json");
+        try {
+            // Stream encrypt in awkward sized chunks, decrypt with the byte API
+            ByteArrayOutputStream ouch = new ByteArrayOutputStream();
+            OutputStream os = enc.encryptingStream(ouch, pass, nBits);
+            int off = 0, chunk = 1;
+            while (off < plaintext.length) {
+                int n = Math.min(chunk, plaintext.length - off);
+                os.write(plaintext, off, n);
+                off += n;
+                chunk = chunk * 3 + 1;
+            }
+            os.close();
+            byte[] ciphertext = ouch.toByteArray();
+            assertEquals(plaintext.length + 8, ciphertext.length);
+            assertArrayEquals(plaintext, dec.decrypt(ciphertext, pass, nBits));
+
+            // Byte API encrypt, stream decrypt
+            ciphertext = enc.encrypt(plaintext, pass, nBits);
+            InputStream is = dec.decryptingStream(new ByteArrayInputStream(ciphertext), pass, nBits);
+            ouch = new ByteArrayOutputStream();
+            ouch.write(is.read());
+            byte[] buf = new byte[1000];
+            int n;
+            while ((n = is.read(buf, 0, buf.length)) > 0)
+                ouch.write(buf, 0, n);
+            assertArrayEquals(plaintext, ouch.toByteArray());
+        } catch (IOException e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+
+        // Heap and direct ByteBuffers
+        ByteBuffer ct = ByteBuffer.allocateDirect(plaintext.length + 8);
+        enc.encrypt(ByteBuffer.wrap(plaintext), ct, pass, nBits);
+        ct.flip();
+        ByteBuffer pt = ByteBuffer.allocate(plaintext.length);
+        dec.decrypt(ct, pt, pass, nBits);
+        assertArrayEquals(plaintext, pt.array());
+    }
+
+    @Test
+    public void streams() {
+        stream_round_trip(new AES_Reference(), new AES_Reference(), ascii_pass, 128);
+        stream_round_trip(new AES_Table(), new AES_Reference(), unicode_pass, 192);
+        stream_round_trip(new AES_Reference(), new AES_Table(), long_pass, 256);
+        stream_round_trip(new AES_Java(), new AES_Java(), unicode_pass, 128);
+        stream_round_trip(new AES_Java(), new AES_Reference(), ascii_pass, 256);
+    }
+
+    @Test
+    public void Table_parallel() {
+        byte[] key = new byte[32];
+        Random r = new Random(999);
+        r.nextBytes(key);
+        int[] w = AesEngine.keySchedule(key);
+        // Odd length, so the last chunk ends in a partial block
+        byte[] plaintext = new byte[3 * AES_Table.CHUNK_SIZE + 12345];
+        r.nextBytes(plaintext);
+
+        byte[] seqCounter = Aes.newCounterBlock();
+        byte[] parCounter = seqCounter.clone();
+        byte[] seq = new byte[plaintext.length];
+        byte[] par = new byte[plaintext.length];
+        AES_Table.ctr(w, seqCounter, plaintext, 0, seq, 0, plaintext.length);
+        AES_Table.parallelCtr(w, parCounter, plaintext, 0, par, 0, plaintext.length, 0);
+        assertArrayEquals(seq, par);
+        assertArrayEquals(seqCounter, parCounter);
+    }
+
+    private void prepared_key(Aes aes) {
+        Aes.PreparedKey pk = aes.prepare(long_pass, 256);
+        Aes.PreparedKey same = aes.prepare(long_pass, 256);
+        assertSame(pk, same);
+        same.release();
+        Aes.PreparedKey other = aes.prepare(long_pass, 128);
+        assertNotSame(pk, other);
+        other.release();
+        for (int i = 0; i < 100; i++) {
+            String secret = "Secret " + i + unicode_pass;
+            assertEquals(secret, aes.decrypt(pk.encrypt(secret), long_pass, 256));
+            assertEquals(secret, pk.decrypt(aes.encrypt(secret, long_pass, 256)));
+        }
+        pk.release();
+    }
+
+    @Test
+    public void prepared_keys() {
+        prepared_key(new AES_Reference());
+        prepared_key(new AES_Table());
+        prepared_key(new AES_Java());
+    }
+
+    @Test
+    public void key_cache_eviction() {
+        Aes aes = new AES_Table();
+        Aes.PreparedKey first = aes.prepare(ascii_pass, 128);
+        byte[] ciphertext = first.encrypt(unicode_pass.getBytes());
+        // Push the first key out of the cache
+        for (int i = 0; i < Aes.MAX_CACHED_KEYS; i++)
+            aes.prepare(ascii_pass + i, 128).release();
+        Aes.PreparedKey again = aes.prepare(ascii_pass, 128);
+        assertNotSame(first, again);
+        // Still usable until the last reference is released
+        assertArrayEquals(unicode_pass.getBytes(), first.decrypt(ciphertext));
+        first.release();
+        assertArrayEquals(new byte[16], first.mKey);
+        try {
+            first.decrypt(ciphertext);
+            fail("Destroyed key was usable");
+        } catch (Error expected) {
+        }
+        assertArrayEquals(unicode_pass.getBytes(), again.decrypt(ciphertext));
+
+        Aes.clearKeyCache();
+        assertArrayEquals(unicode_pass.getBytes(), again.decrypt(ciphertext));
+        again.release();
+        assertArrayEquals(new byte[16], again.mKey);
+    }
+
+    @Test
+    public void concurrent_key_cache_eviction() throws InterruptedException {
+        final Aes aes = new AES_Table();
+        final byte[] plaintext = unicode_pass.getBytes();
+        final Throwable[] failed = {null};
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 50; i++) {
+                        // More passwords than the cache holds, so keys are evicted while in use
+                        Aes.PreparedKey pk = aes.prepare(ascii_pass + (id * 50 + i) % (3 * Aes.MAX_CACHED_KEYS), 128);
+                        byte[] ciphertext = pk.encrypt(plaintext);
+                        Thread.yield();
+                        assertArrayEquals(plaintext, pk.decrypt(ciphertext));
+                        pk.release();
+                    }
+                } catch (Throwable e) {
+                    synchronized (failed) {
+                        failed[0] = e;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        if (failed[0] != null)
+            fail(failed[0].toString());
+        Aes.clearKeyCache();
+    }
+
+    @Test
+    public void streams_and_buffers_use_key_cache() throws IOException {
+        final int[] made = {0};
+        Aes aes = new AES_Table() {
+            @Override // Aes
+            protected byte[] makeKey(String password, int nBits) {
+                made[0]++;
+                return super.makeKey(password, nBits);
+            }
+        };
+        byte[] plaintext = unicode_pass.getBytes();
+        Aes.PreparedKey pk = aes.prepare(ascii_pass, 256);
+        assertEquals(1, made[0]);
+
+        ByteArrayOutputStream ouch = new ByteArrayOutputStream();
+        OutputStream os = aes.encryptingStream(ouch, ascii_pass, 256);
+        os.write(plaintext);
+        os.close();
+        InputStream is = aes.decryptingStream(new ByteArrayInputStream(ouch.toByteArray()), ascii_pass, 256);
+        byte[] buf = new byte[plaintext.length];
+        assertEquals(buf.length, is.read(buf, 0, buf.length));
+        assertArrayEquals(plaintext, buf);
+
+        ByteBuffer ct = ByteBuffer.allocate(plaintext.length + 8);
+        aes.encrypt(ByteBuffer.wrap(plaintext), ct, ascii_pass, 256);
+        ct.flip();
+        ByteBuffer pt = ByteBuffer.allocate(plaintext.length);
+        aes.decrypt(ct, pt, ascii_pass, 256);
+        assertArrayEquals(plaintext, pt.array());
+        assertEquals(1, made[0]);
+
+        // The open stream keeps the key until it is closed
+        pk.release();
+        Aes.clearKeyCache();
+        assertFalse(Arrays.equals(new byte[32], pk.mKey));
+        is.close();
+        assertArrayEquals(new byte[32], pk.mKey);
+    }
 }
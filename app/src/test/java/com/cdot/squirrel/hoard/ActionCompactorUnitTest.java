@@ -0,0 +1,161 @@
+package com.cdot.squirrel.hoard;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ActionCompactorUnitTest {
+
+    private static Action act(char type, String path, long time, String data) {
+        return new Action(type, HPath.valueOf(path), time, data);
+    }
+
+    // Play the original and the compacted log, and check they give the same tree
+    private static List<Action> check(List<Action> log) {
+        List<Action> compacted = ActionCompactor.compact(log);
+        Hoard a = new Hoard();
+        a.playActions(log, false);
+        Hoard b = new Hoard();
+        assertEquals(0, b.playActions(compacted, false).size());
+        // Root times are the times the hoards were created
+        StringBuilder sa = new StringBuilder(), sb = new StringBuilder();
+        for (HoardNode n : a.getRoot().getChildren().values())
+            sa.append(n.toString(1));
+        for (HoardNode n : b.getRoot().getChildren().values())
+            sb.append(n.toString(1));
+        assertEquals(sa.toString(), sb.toString());
+        assertEquals(a.getHash(), b.getHash());
+        return compacted;
+    }
+
+    @Test
+    public void edits() {
+        List<Action> log = Arrays.asList(
+                act(Action.NEW, "A", 1, null),
+                act(Action.NEW, "A↘B", 2, "one"),
+                act(Action.EDIT, "A↘B", 3, "two"),
+                act(Action.SET_ALARM, "A↘B", 4, "{\"due\":1,\"repeat\":0}"),
+                act(Action.EDIT, "A↘B", 5, "three"),
+                act(Action.CONSTRAIN, "A↘B", 6, "{\"size\":5,\"chars\":\"a-z\"}"),
+                act(Action.CANCEL_ALARM, "A↘B", 7, null),
+                act(Action.CONSTRAIN, "A↘B", 8, "{\"size\":6,\"chars\":\"a-z\"}"),
+                // Conflicts
+                act(Action.EDIT, "A↘C", 9, "four"));
+        List<Action> compacted = check(log);
+        assertEquals(Arrays.asList(log.get(0), log.get(1), log.get(4),
+                new Action(Action.SET_ALARM, HPath.valueOf("A↘B"), 7, null), log.get(7)),
+                compacted);
+    }
+
+    @Test
+    public void new_then_delete() {
+        List<Action> log = Arrays.asList(
+                act(Action.NEW, "A", 1, null),
+                act(Action.NEW, "A↘B", 2, null),
+                act(Action.NEW, "A↘B↘C", 3, "data"),
+                act(Action.EDIT, "A↘B↘C", 4, "more"),
+                act(Action.DELETE, "A↘B", 5, null),
+                act(Action.NEW, "A↘D", 6, "kept"));
+        // The delete doesn't change the time of A, as D is created later
+        assertEquals(Arrays.asList(log.get(0), log.get(5)), check(log));
+
+        // Here it does, so B is created and deleted, but C is dropped
+        log = Arrays.asList(log.get(0), log.get(1), log.get(2), log.get(3), log.get(4));
+        assertEquals(Arrays.asList(log.get(0), log.get(1), log.get(4)), check(log));
+    }
+
+    @Test
+    public void rename_and_move_chains() {
+        List<Action> log = Arrays.asList(
+                act(Action.NEW, "A", 1, null),
+                act(Action.NEW, "B", 1, null),
+                act(Action.NEW, "C", 1, null),
+                act(Action.NEW, "A↘X", 2, "x"),
+                act(Action.RENAME, "A↘X", 3, "Y"),
+                act(Action.RENAME, "A↘Y", 4, "Z"),
+                act(Action.MOVE, "A↘Z", 5, "B"),
+                act(Action.MOVE, "B↘Z", 5, "C"),
+                // Without this, B's time would be lost with the first move
+                act(Action.NEW, "B↘W", 6, "w"));
+        List<Action> compacted = check(log);
+        assertEquals(7, compacted.size());
+        assertEquals(new Action(Action.RENAME, HPath.valueOf("A↘X"), 4, "Z"), compacted.get(4));
+        assertEquals(new Action(Action.MOVE, HPath.valueOf("A↘Z"), 5, "C"), compacted.get(5));
+
+        // A rename back to the original name can't be folded
+        log = Arrays.asList(
+                act(Action.NEW, "A", 1, "a"),
+                act(Action.RENAME, "A", 2, "B"),
+                act(Action.RENAME, "B", 3, "A"));
+        assertEquals(3, check(log).size());
+    }
+
+    @Test
+    public void random_logs() {
+        Random rand = new Random(42);
+        String[] forks = {"a", "b", "c"};
+        String[] leaves = {"x", "y"};
+        for (int run = 0; run < 200; run++) {
+            List<Action> log = new ArrayList<>();
+            long time = 0;
+            for (int n = 0; n < 200; n++) {
+                // Times are mostly increasing, but not always
+                time += rand.nextInt(4) - 1;
+                StringBuilder fp = new StringBuilder(forks[rand.nextInt(3)]);
+                for (int d = rand.nextInt(3); d > 0; d--)
+                    fp.append(HPath.PATH_SEPARATOR).append(forks[rand.nextInt(3)]);
+                String fork = fp.toString();
+                String leaf = fork + HPath.PATH_SEPARATOR + leaves[rand.nextInt(2)];
+                switch (rand.nextInt(11)) {
+                    case 0:
+                    case 1:
+                        log.add(act(Action.NEW, fork, time, null));
+                        break;
+                    case 2:
+                        log.add(act(Action.NEW, leaf, time, "n" + n));
+                        break;
+                    case 3:
+                        log.add(act(Action.EDIT, leaf, time, "e" + n));
+                        break;
+                    case 4:
+                        log.add(act(Action.DELETE, rand.nextBoolean() ? fork : leaf, time, null));
+                        break;
+                    case 5:
+                        log.add(act(Action.INSERT, leaf, time, "{\"time\":" + time + ",\"data\":\"i" + n + "\"}"));
+                        break;
+                    case 6:
+                        if (rand.nextBoolean())
+                            log.add(act(Action.RENAME, fork, time, forks[rand.nextInt(3)]));
+                        else
+                            log.add(act(Action.RENAME, leaf, time, leaves[rand.nextInt(2)]));
+                        break;
+                    case 7: {
+                        String to = forks[rand.nextInt(3)];
+                        // Don't move a folder into itself
+                        if (!(to + HPath.PATH_SEPARATOR).startsWith(fork + HPath.PATH_SEPARATOR))
+                            log.add(act(Action.MOVE, rand.nextBoolean() ? fork : leaf, time, to));
+                        break;
+                    }
+                    case 8:
+                        log.add(act(Action.SET_ALARM, rand.nextBoolean() ? fork : leaf, time,
+                                "{\"due\":" + n + ",\"repeat\":0}"));
+                        break;
+                    case 9:
+                        log.add(act(Action.CANCEL_ALARM, rand.nextBoolean() ? fork : leaf, time, null));
+                        break;
+                    case 10:
+                        log.add(act(Action.CONSTRAIN, leaf, time, "{\"size\":" + n + ",\"chars\":\"a-z\"}"));
+                        break;
+                }
+            }
+            List<Action> compacted = check(log);
+            assertTrue(compacted.size() <= log.size());
+        }
+    }
+}
@@ -5,6 +5,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -13,7 +14,11 @@ import java.util.Arrays;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class ActionUnitTests {
@@ -84,6 +89,77 @@ public class ActionUnitTests {
         assertEquals(expects, m);
     }
 
+    @Test
+    public void should_merge_many_streams() {
+        Action a1 = new Action(Action.NEW, new HPath("A"), 1 * HOUR);
+        Action b2 = new Action(Action.NEW, new HPath("A↘B"), 2 * HOUR, "B");
+        Action c2 = new Action(Action.NEW, new HPath("A↘C"), 2 * HOUR, "C");
+        Action e3 = new Action(Action.EDIT, new HPath("A↘B"), 3 * HOUR, "BB");
+        Action e4 = new Action(Action.EDIT, new HPath("A↘B"), 4 * HOUR, "BBB");
+        // Same as b2, different object
+        Action b2d = new Action(Action.NEW, new HPath("A↘B"), 2 * HOUR, "B");
+
+        List<List<Action>> streams = new ArrayList<>();
+        streams.add(Arrays.asList(a1, b2, e4));
+        // Not in time order
+        streams.add(Arrays.asList(e3, c2, a1));
+        streams.add(Arrays.asList(b2d, b2d, e4));
+        streams.add(new ArrayList<>());
+        List<Action> m = Action.mergeActions(streams);
+        assertEquals(Arrays.asList(a1, b2, c2, e3, e4), m);
+        // Duplicates keep the action from the earliest stream
+        assertTrue(m.get(1) == b2);
+        // The unsorted stream was not modified
+        assertEquals(e3, streams.get(1).get(0));
+    }
+
+    @Test
+    public void hash_and_key() {
+        Action a = new Action(Action.EDIT, new HPath("A↘B"), 2 * HOUR, "X");
+        Action b = new Action(Action.EDIT, HPath.valueOf("A").with("B"), 2 * HOUR, "X");
+        Action untimed = new Action(Action.EDIT, new HPath("A↘B"), "X");
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        // NO_TIME matches any time, so the hash must ignore time
+        assertEquals(a, untimed);
+        assertEquals(a.hashCode(), untimed.hashCode());
+
+        assertEquals(a.key(), b.key());
+        assertEquals(a.key().hashCode(), b.key().hashCode());
+        assertNotEquals(a.key(), untimed.key());
+        assertNotEquals(a.key(), new Action(Action.EDIT, new HPath("A↘B"), 2 * HOUR, "Y").key());
+        assertNotEquals(a.key(), new Action(Action.NEW, new HPath("A↘B"), 2 * HOUR, "X").key());
+        assertNotEquals(a.key(), new Action(Action.EDIT, new HPath("A↘C"), 2 * HOUR, "X").key());
+
+        // A key does not follow changes to the action
+        Action.Key k = a.key();
+        a.data = "Z";
+        assertEquals(k, b.key());
+        assertNotEquals(k, a.key());
+    }
+
+    @Test
+    public void index() {
+        List<Action> log = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            log.add(new Action(Action.EDIT, new HPath("A↘B" + (i % 10)), i * HOUR, "V" + i));
+        ActionIndex idx = new ActionIndex(log);
+        assertEquals(1000, idx.size());
+        assertTrue(idx.contains(new Action(Action.EDIT, new HPath("A↘B3"), 3 * HOUR, "V3")));
+        assertFalse(idx.contains(new Action(Action.EDIT, new HPath("A↘B3"), 4 * HOUR, "V3")));
+        assertFalse(idx.contains(new Action(Action.EDIT, new HPath("A↘B3"), "V3")));
+
+        List<Action> incoming = Arrays.asList(
+                new Action(Action.EDIT, new HPath("A↘B5"), 5 * HOUR, "V5"),
+                new Action(Action.NEW, new HPath("A↘C"), 2000 * HOUR),
+                new Action(Action.NEW, new HPath("A↘C"), 2000 * HOUR));
+        List<Action> added = idx.addAll(incoming);
+        assertEquals(1, added.size());
+        assertTrue(added.get(0) == incoming.get(1));
+        assertEquals(1001, idx.size());
+        assertFalse(idx.add(incoming.get(2)));
+    }
+
     @Test
     public void loader() {
         try {
@@ -97,4 +173,118 @@ public class ActionUnitTests {
             fail(je.getMessage());
         }
     }
+
+    @Test
+    public void binary_round_trip() throws JSONException, IOException {
+        JSONObject job = new JSONObject(loadTestResource("actions.json"));
+        JSONArray j = job.getJSONArray("actions");
+        List<Action> actions = new ArrayList<>();
+        for (int i = 0; i < j.length(); i++)
+            actions.add(new Action(j.getJSONObject(i)));
+        // Null data, times going backwards, names needing more than one byte
+        actions.add(new Action(Action.DELETE, new HPath("A↘Bé↘C"), 2 * HOUR));
+        actions.add(new Action(Action.NEW, new HPath("A↘Bé"), Action.NO_TIME));
+        actions.add(new Action(Action.EDIT, new HPath("A↘Bé↘C"), 1 * HOUR, ""));
+
+        ByteArrayOutputStream ouch = new ByteArrayOutputStream();
+        ActionWriter w = new ActionWriter(ouch);
+        w.write(actions);
+        w.close();
+        byte[] bytes = ouch.toByteArray();
+        assertTrue(bytes.length < j.toString().length());
+
+        ActionReader r = new ActionReader(new ByteArrayInputStream(bytes));
+        List<Action> read = r.readAll();
+        assertNull(r.read());
+        assertEquals(actions.size(), read.size());
+        for (int i = 0; i < actions.size(); i++) {
+            Action a = actions.get(i), b = read.get(i);
+            assertEquals(a.toJSON().toString(), b.toJSON().toString());
+        }
+    }
+
+    @Test
+    public void binary_bad_header() {
+        try {
+            new ActionReader(new ByteArrayInputStream("{\"actions\":[]}".getBytes()));
+            fail("Expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+
+    // Expect reading all of a corrupt action stream to throw an IOException
+    private void assertCorrupt(byte[] bytes) {
+        try {
+            new ActionReader(new ByteArrayInputStream(bytes)).readAll();
+            fail("Expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+
+    // Header and the start of a NEW action at time 0, up to its path
+    private static ByteArrayOutputStream actionStart() throws IOException {
+        ByteArrayOutputStream ouch = new ByteArrayOutputStream();
+        ouch.write(ActionWriter.MAGIC);
+        ouch.write(ActionWriter.VERSION);
+        ouch.write(Action.NEW);
+        ouch.write(0); // time
+        return ouch;
+    }
+
+    // As actionStart, followed by a path that is a new child of the root, up to its name
+    private static ByteArrayOutputStream newPathStart() throws IOException {
+        ByteArrayOutputStream ouch = actionStart();
+        ouch.write(1); // new path
+        ouch.write(0); // parent is the root
+        return ouch;
+    }
+
+    @Test
+    public void binary_truncated() throws IOException {
+        ByteArrayOutputStream ouch = new ByteArrayOutputStream();
+        ActionWriter w = new ActionWriter(ouch);
+        w.write(new Action(Action.EDIT, new HPath("A↘B"), 1 * HOUR, "Some data"));
+        w.close();
+        byte[] bytes = ouch.toByteArray();
+        for (int len = ActionWriter.MAGIC.length + 2; len < bytes.length; len++)
+            assertCorrupt(Arrays.copyOf(bytes, len));
+    }
+
+    @Test
+    public void binary_corrupt() throws IOException {
+        // Name longer than MAX_STRING
+        ByteArrayOutputStream ouch = newPathStart();
+        ouch.write(0); // new name
+        ouch.write(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F});
+        assertCorrupt(ouch.toByteArray());
+
+        // Name length that is negative as a long
+        ouch = newPathStart();
+        ouch.write(0); // new name
+        for (int i = 0; i < 9; i++)
+            ouch.write(0xFF);
+        ouch.write(0x01);
+        assertCorrupt(ouch.toByteArray());
+
+        // Reference to a name that hasn't been read
+        ouch = newPathStart();
+        ouch.write(5);
+        assertCorrupt(ouch.toByteArray());
+
+        // Reference to a path that hasn't been read, and one out of int range
+        ouch = actionStart();
+        ouch.write(7);
+        assertCorrupt(ouch.toByteArray());
+        ouch = actionStart();
+        ouch.write(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01});
+        assertCorrupt(ouch.toByteArray());
+
+        // Data longer than MAX_STRING
+        ouch = newPathStart();
+        ouch.write(0); // new name
+        ouch.write(1);
+        ouch.write('A');
+        ouch.write(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F});
+        assertCorrupt(ouch.toByteArray());
+    }
 }
@@ -0,0 +1,66 @@
+package com.cdot.squirrel.hoard;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HPathUnitTest {
+
+    @Test
+    public void interned() {
+        HPath a = HPath.valueOf("A↘B↘C");
+        assertSame(a, HPath.ROOT.with("A").with("B↘C"));
+        assertSame(a, HPath.valueOf("A↘B↘C↘D").parent());
+        assertSame(a.parent(), HPath.valueOf("A↘B"));
+        assertSame(HPath.ROOT, HPath.valueOf("A").parent());
+
+        HPath copy = new HPath("A↘B↘C");
+        assertNotSame(a, copy);
+        assertEquals(a, copy);
+        assertEquals(a.hashCode(), copy.hashCode());
+        assertSame(a, copy.intern());
+        assertSame(HPath.valueOf("A↘B↘C↘D"), copy.with("D"));
+
+        assertEquals(HPath.ROOT, new HPath());
+        assertNotEquals(a, HPath.valueOf("A↘B↘D"));
+        assertNotEquals(a, HPath.valueOf("B↘C"));
+    }
+
+    @Test
+    public void names() {
+        HPath p = HPath.valueOf("A↘B↘C");
+        assertEquals(3, p.size());
+        assertEquals("A", p.get(0));
+        assertEquals("C", p.get(2));
+        assertEquals("C", p.getName());
+        assertNull(HPath.ROOT.getName());
+        assertTrue(HPath.ROOT.isEmpty());
+        assertFalse(p.isEmpty());
+        List<String> names = new ArrayList<>();
+        for (String name : p)
+            names.add(name);
+        assertEquals(Arrays.asList("A", "B", "C"), names);
+        assertEquals("A↘B↘C", p.toString());
+        // child() does not split
+        assertEquals(2, HPath.valueOf("A").child("B↘C").size());
+    }
+
+    @Test
+    public void json() throws JSONException {
+        HPath p = HPath.valueOf("A↘B↘C");
+        assertEquals("[\"A\",\"B\",\"C\"]", p.toJSON().toString());
+        assertSame(p, HPath.valueOf(p.toJSON()));
+        assertEquals(p, new HPath(p.toJSON()));
+    }
+}
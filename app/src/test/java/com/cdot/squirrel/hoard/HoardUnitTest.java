@@ -9,15 +9,22 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -158,6 +165,172 @@ public class HoardUnitTest {
         System.out.println(h2.getRoot().toString());
     }
 
+    @Test
+    public void snapshot_and_tail() throws JSONException {
+        Hoard h1 = new Hoard(cloud_actions);
+        assertEquals(4, h1.getTail().size());
+        h1.compact();
+        assertEquals(0, h1.getTail().size());
+        try {
+            h1.playAction(new Action(Action.NEW, new HPath("FineDining↘Caviar↘Beluga"), 5 * HOUR, "Fishy"), true);
+            h1.playAction(new Action(Action.SET_ALARM, new HPath("FineDining↘Caviar"), 6 * HOUR, "{\"due\":1,\"repeat\":1000000}"), true);
+        } catch (Hoard.ConflictException ce) {
+            fail(ce.getMessage());
+        }
+
+        // Snapshot from before the new actions, plus the new actions
+        JSONObject job = h1.toJSON();
+        assertTrue(job.has("tree"));
+        assertEquals(2, job.getJSONArray("actions").length());
+        Hoard h2 = new Hoard(job);
+        assertEquals(h1.getRoot(), h2.getRoot());
+        assertEquals("Fishy", ((Leaf) h2.getNode(new HPath("FineDining↘Caviar↘Beluga"))).getData());
+        assertNotNull(h2.getNode(new HPath("FineDining↘Caviar")).getAlarm());
+        assertEquals(2, h2.getTail().size());
+
+        // Tail over the limit is compacted on save
+        int max = Hoard.sMaxTail;
+        Hoard.sMaxTail = 1;
+        try {
+            job = h2.toJSON();
+        } finally {
+            Hoard.sMaxTail = max;
+        }
+        assertEquals(0, job.getJSONArray("actions").length());
+        assertEquals(0, h2.getTail().size());
+        Hoard h3 = new Hoard(job);
+        assertEquals(h1.getRoot(), h3.getRoot());
+        assertEquals("Fishy", ((Leaf) h3.getNode(new HPath("FineDining↘Caviar↘Beluga"))).getData());
+        assertEquals(1000000, h3.getNode(new HPath("FineDining↘Caviar")).getAlarm().repeat);
+    }
+
+    @Test
+    public void stream_load_and_save() throws IOException, JSONException {
+        // Whole-history format
+        StringWriter w = new StringWriter();
+        w.write("{\"actions\":");
+        Hoard.writeActions(cloud_actions, w);
+        w.write("}");
+        Hoard h1 = new Hoard(new StringReader(w.toString()));
+        assertEquals(4, h1.getTail().size());
+        assertEquals(new Hoard(cloud_actions).getNode(new HPath("FineDining")), h1.getNode(new HPath("FineDining")));
+
+        // Snapshot and tail
+        h1.compact();
+        try {
+            h1.playAction(new Action(Action.NEW, new HPath("FineDining↘Note"), 5 * HOUR, "say \"hi\"\n\u00e9↘"), true);
+        } catch (Hoard.ConflictException ce) {
+            fail(ce.getMessage());
+        }
+        w = new StringWriter();
+        h1.write(w);
+        Hoard h2 = new Hoard(new StringReader(w.toString()));
+        assertEquals(h1.getRoot(), h2.getRoot());
+        assertEquals("say \"hi\"\n\u00e9↘", ((Leaf) h2.getNode(new HPath("FineDining↘Note"))).getData());
+        assertEquals(1, h2.getTail().size());
+
+        // Keys in any order, as written by toJSON
+        JSONObject job = h1.toJSON();
+        String text = "{ \"actions\" : " + job.getJSONArray("actions") + ", \"tree\": " + job.getJSONObject("tree") + " }";
+        Hoard h3 = new Hoard(new StringReader(text));
+        assertEquals(h1.getRoot(), h3.getRoot());
+
+        // Output of actionsToCreate
+        w = new StringWriter();
+        w.write("{\"actions\":");
+        Hoard.writeActions(h1.actionsToCreate(), w);
+        w.write("}");
+        assertEquals(h1.getNode(new HPath("FineDining")), new Hoard(new StringReader(w.toString())).getNode(new HPath("FineDining")));
+
+        try {
+            new Hoard(new StringReader("{\"actions\":[{\"type\":\"N\"}"));
+            fail("Expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void progressive_read() throws IOException {
+        Hoard h1 = new Hoard(cloud_actions);
+        h1.compact();
+        assertEquals(0, h1.playActions(Arrays.asList(
+                new Action(Action.NEW, new HPath("Shops"), 5 * HOUR),
+                new Action(Action.NEW, new HPath("Shops↘Fishmonger"), 6 * HOUR, "Cod"),
+                new Action(Action.NEW, new HPath("Shops↘Baker"), 7 * HOUR),
+                new Action(Action.DELETE, new HPath("FineDining↘Truffles"), 8 * HOUR)), true).size());
+        StringWriter w = new StringWriter();
+        h1.write(w);
+
+        // The tree comes first, then the actions in batches
+        final Hoard[] loaded = {null};
+        final List<Integer> batches = new ArrayList<>();
+        Hoard.read(new StringReader(w.toString()), 3, new Hoard.Loader() {
+            @Override // Hoard.Loader
+            public void treeLoaded(Hoard hoard) {
+                assertNull(loaded[0]);
+                assertEquals(0, hoard.getTail().size());
+                assertEquals(new Hoard(cloud_actions).getNode(new HPath("FineDining")), hoard.getNode(new HPath("FineDining")));
+                assertEquals(1, hoard.getRoot().getChildren().size());
+                loaded[0] = hoard;
+            }
+
+            @Override // Hoard.Loader
+            public boolean actionsLoaded(List<Action> actions, int total) {
+                assertNotNull(loaded[0]);
+                // write() gives the number of actions
+                assertEquals(4, total);
+                batches.add(actions.size());
+                loaded[0].playBatch(actions, false);
+                return true;
+            }
+        });
+        assertEquals(Arrays.asList(3, 1), batches);
+        assertEquals(h1.getRoot(), loaded[0].getRoot());
+
+        // Whole-history format is shown as soon as the actions start
+        w = new StringWriter();
+        w.write("{\"actions\":");
+        Hoard.writeActions(cloud_actions, w);
+        w.write(", \"tree\": {}}");
+        batches.clear();
+        loaded[0] = null;
+        try {
+            Hoard.read(new StringReader(w.toString()), 2, new Hoard.Loader() {
+                @Override // Hoard.Loader
+                public void treeLoaded(Hoard hoard) {
+                    assertEquals(0, hoard.getRoot().getChildren().size());
+                    loaded[0] = hoard;
+                }
+
+                @Override // Hoard.Loader
+                public boolean actionsLoaded(List<Action> actions, int total) {
+                    assertEquals(-1, total);
+                    batches.add(actions.size());
+                    return true;
+                }
+            });
+            fail("Expected IOException");
+        } catch (IOException expected) {
+        }
+        assertNotNull(loaded[0]);
+        assertEquals(Arrays.asList(2, 2), batches);
+
+        // The loader can stop reading, so the bad tree isn't reached
+        batches.clear();
+        Hoard.read(new StringReader(w.toString()), 2, new Hoard.Loader() {
+            @Override // Hoard.Loader
+            public void treeLoaded(Hoard hoard) {
+            }
+
+            @Override // Hoard.Loader
+            public boolean actionsLoaded(List<Action> actions, int total) {
+                batches.add(actions.size());
+                return false;
+            }
+        });
+        assertEquals(Arrays.asList(2), batches);
+    }
+
     @Test
     public void play_actions_into_populated_hoard_with_undo() {
         // Play the cloud action set into a populated client hoard
@@ -453,6 +626,75 @@ public class HoardUnitTest {
         assertEquals(4 * HOUR, truffles.getTime());
     }
 
+    @Test
+    public void parent_links() {
+        Hoard h = new Hoard(cloud_actions);
+        Fork fd = (Fork) h.getRoot().getChildByName("FineDining");
+        Fork caviar = (Fork) fd.getChildByName("Caviar");
+        HoardNode salmon = caviar.getChildByName("Salmon");
+        assertNull(h.getRoot().getParent());
+        assertEquals(h.getRoot(), fd.getParent());
+        assertEquals(caviar, h.getParentOf(salmon));
+        assertNull(fd.getParentOf(h.getRoot()));
+        assertEquals(new HPath(), h.getPathOf(h.getRoot()));
+        assertEquals(new HPath("FineDining↘Caviar↘Salmon"), salmon.makePath());
+
+        try {
+            h.playAction(new Action(Action.RENAME, new HPath("FineDining↘Caviar"), 5 * HOUR, "Roe"), true);
+            assertEquals(new HPath("FineDining↘Roe↘Salmon"), h.getPathOf(salmon));
+            h.playAction(new Action(Action.MOVE, new HPath("FineDining↘Roe↘Salmon"), 6 * HOUR, "FineDining↘Truffles"), true);
+            assertEquals(new HPath("FineDining↘Truffles↘Salmon"), h.getPathOf(salmon));
+            assertEquals(fd.getChildByName("Truffles"), salmon.getParent());
+            h.playAction(new Action(Action.DELETE, new HPath("FineDining↘Truffles"), 7 * HOUR), true);
+            // The deleted subtree is no longer reachable from the root
+            assertNull(h.getPathOf(salmon));
+            assertNull(h.getParentOf(salmon));
+            h.undo();
+        } catch (Hoard.ConflictException ce) {
+            fail(ce.getMessage());
+        }
+        // INSERT builds a new subtree, which must be linked in too
+        HoardNode inserted = h.getNode(new HPath("FineDining↘Truffles↘Salmon"));
+        assertEquals(new HPath("FineDining↘Truffles↘Salmon"), inserted.makePath());
+        assertEquals(h.getNode(new HPath("FineDining↘Truffles")), inserted.getParent());
+    }
+
+    @Test
+    public void play_batch() {
+        Hoard h = new Hoard();
+        final int[] calls = {0, 0};
+        h.addChangeListener(new Hoard.ChangeListener() {
+            @Override
+            public void actionPlayed(Action act, HoardNode parent, HoardNode node, HoardNode newParent) {
+                calls[0]++;
+            }
+
+            @Override
+            public void actionsPlayed(List<Action> acts) {
+                assertEquals(6, acts.size());
+                calls[1]++;
+            }
+        });
+        List<Action> batch = Arrays.asList(
+                new Action(Action.NEW, new HPath("A"), 1 * HOUR),
+                new Action(Action.NEW, new HPath("A↘B"), 2 * HOUR),
+                new Action(Action.NEW, new HPath("A↘B↘C"), 3 * HOUR, "ABC"),
+                // Folders remembered for A and A↘B must be forgotten
+                new Action(Action.RENAME, new HPath("A"), 4 * HOUR, "X"),
+                new Action(Action.NEW, new HPath("A↘B↘D"), 5 * HOUR, "ABD"),
+                new Action(Action.NEW, new HPath("A"), 6 * HOUR),
+                new Action(Action.NEW, new HPath("A↘E"), 7 * HOUR, "AE"));
+        List<Hoard.ConflictException> e = h.playBatch(batch, true);
+        assertEquals(1, e.size());
+        assertEquals("Conflict at A↘B↘D: parent 'A↘B' was not found", e.get(0).getMessage());
+        assertEquals(0, calls[0]);
+        assertEquals(1, calls[1]);
+        assertEquals(6, h.canUndo());
+        assertEquals("ABC", ((Leaf) h.getNode(new HPath("X↘B↘C"))).getData());
+        assertEquals("AE", ((Leaf) h.getNode(new HPath("A↘E"))).getData());
+        assertNull(h.getNode(new HPath("X↘E")));
+    }
+
     @Test
     public void reject_NEW_zero_path() {
         Hoard h = new Hoard();
@@ -571,6 +813,334 @@ public class HoardUnitTest {
         assertEquals(new Action(Action.EDIT, new HPath("FineDining↘Seeds↘Nuts"), "Pea"), acts.get(i++));
     }
 
+    @Test
+    public void diff_large_folder() {
+        // a has even entries, b has entries divisible by 3, with different data for 6n
+        List<Action> as = new ArrayList<>();
+        List<Action> bs = new ArrayList<>();
+        as.add(new Action(Action.NEW, new HPath("Big"), 1));
+        bs.add(new Action(Action.NEW, new HPath("Big"), 1));
+        for (int i = 0; i < 3000; i++) {
+            String name = String.format("%05d", i);
+            if (i % 2 == 0)
+                as.add(new Action(Action.NEW, HPath.valueOf("Big").child(name), 2, "a"));
+            if (i % 3 == 0)
+                bs.add(new Action(Action.NEW, HPath.valueOf("Big").child(name), 2, i % 6 == 0 ? "b" : "a"));
+        }
+        Hoard a = new Hoard(as);
+        Hoard b = new Hoard(bs);
+        final List<Action> acts = new ArrayList<>();
+        a.diff(b, (act, na, nb) -> acts.add(act));
+        int edits = 0, deletes = 0, creates = 0;
+        char last = Action.EDIT;
+        for (Action act : acts) {
+            if (act.type == Action.EDIT)
+                edits++;
+            else if (act.type == Action.DELETE)
+                deletes++;
+            else {
+                assertEquals(Action.NEW, act.type);
+                creates++;
+            }
+            // Creations come last
+            assertTrue(last != Action.NEW || act.type == Action.NEW);
+            last = act.type;
+        }
+        assertEquals(500, edits);
+        assertEquals(1000, deletes);
+        assertEquals(500, creates);
+    }
+
+    @Test
+    public void actions_to_create_leaf() {
+        Hoard h1 = new Hoard(cloud_actions);
+        HPath salmon = new HPath("FineDining↘Caviar↘Salmon");
+        try {
+            h1.playAction(new Action(Action.CONSTRAIN, salmon, 5 * HOUR, "{\"size\":10,\"chars\":\"a-z\"}"), true);
+            h1.playAction(new Action(Action.SET_ALARM, salmon, 6 * HOUR, "{\"due\":1,\"repeat\":1000000}"), true);
+        } catch (Hoard.ConflictException ce) {
+            fail(ce.getMessage());
+        }
+        // Constraints and alarms on a leaf are set on the leaf, not its folder
+        for (Action act : h1.actionsToCreate())
+            if (act.type == Action.CONSTRAIN || act.type == Action.SET_ALARM)
+                assertEquals(salmon, act.path);
+        Hoard h2 = new Hoard(h1.actionsToCreate());
+        Leaf leaf = (Leaf) h2.getNode(salmon);
+        assertEquals(10, leaf.getConstraints().length);
+        assertEquals(1000000, leaf.getAlarm().repeat);
+        assertNull(h2.getNode(new HPath("FineDining↘Caviar")).getAlarm());
+    }
+
+    @Test
+    public void bounded_history() throws IOException {
+        Hoard h = new Hoard(cloud_actions);
+        UndoHistory history = h.getHistory();
+        history.setLimits(3, Long.MAX_VALUE);
+        HPath salmon = new HPath("FineDining↘Caviar↘Salmon");
+        try {
+            for (int i = 0; i < 5; i++)
+                h.playAction(new Action(Action.EDIT, salmon, 10 * HOUR + i, "Pink " + i), true);
+            assertEquals(3, h.canUndo());
+            h.undo();
+            h.undo();
+            h.undo();
+        } catch (Hoard.ConflictException ce) {
+            fail(ce.getMessage());
+        }
+        assertEquals(0, h.canUndo());
+        assertEquals(0, history.getBytes());
+        // The two oldest edits were forgotten
+        assertEquals("Pink 1", ((Leaf) h.getNode(salmon)).getData());
+
+        // Deleting a big folder saves it compressed, or in a file
+        File dir = Files.createTempDirectory("undo").toFile();
+        // Left by a process that was killed
+        File stale = File.createTempFile(UndoHistory.SPILL_PREFIX, null, dir);
+        File other = File.createTempFile("other", null, dir);
+        history.setSpillDirectory(dir);
+        assertFalse(stale.exists());
+        assertTrue(other.delete());
+        StringBuilder sb = new StringBuilder();
+        Random rand = new Random(1);
+        for (int i = 0; i < 200000; i++)
+            sb.append((char) ('a' + rand.nextInt(26)));
+        String random = sb.toString();
+        HPath big = new HPath("Big");
+        try {
+            h.playAction(new Action(Action.NEW, big, 20 * HOUR), false);
+            h.playAction(new Action(Action.NEW, big.with("Same"), 20 * HOUR, new String(new char[100000]).replace('\0', 'x')), false);
+            h.playAction(new Action(Action.NEW, big.with("Random"), 20 * HOUR, random), false);
+            h.playAction(new Action(Action.DELETE, big, 21 * HOUR), true);
+        } catch (Hoard.ConflictException ce) {
+            fail(ce.getMessage());
+        }
+        assertNull(h.getNode(big));
+        assertTrue(history.getBytes() < 1000);
+        assertEquals(1, dir.listFiles().length);
+        // Another history sharing the directory leaves the live spill file alone
+        new UndoHistory().setSpillDirectory(dir);
+        assertEquals(1, dir.listFiles().length);
+        try {
+            h.undo();
+        } catch (Hoard.ConflictException ce) {
+            fail(ce.getMessage());
+        }
+        assertEquals(random, ((Leaf) h.getNode(big.with("Random"))).getData());
+        assertEquals(100000, ((Leaf) h.getNode(big.with("Same"))).getData().length());
+        // Kept packed for redo
+        assertEquals(1, history.redoSize());
+        assertEquals(1, dir.listFiles().length);
+        try {
+            h.redo();
+            assertNull(h.getNode(big));
+            h.undo();
+        } catch (Hoard.ConflictException ce) {
+            fail(ce.getMessage());
+        }
+        assertEquals(random, ((Leaf) h.getNode(big.with("Random"))).getData());
+        assertEquals(1, dir.listFiles().length);
+
+        // The size limit forgets old events, but keeps the newest
+        history.setLimits(100, 1000);
+        try {
+            h.playAction(new Action(Action.EDIT, salmon, 30 * HOUR, "Red"), true);
+            h.playAction(new Action(Action.EDIT, big.with("Same"), 30 * HOUR, random.substring(0, 3000)), true);
+        } catch (Hoard.ConflictException ce) {
+            fail(ce.getMessage());
+        }
+        assertEquals(1, h.canUndo());
+        // Redo was forgotten
+        assertEquals(0, dir.listFiles().length);
+        dir.delete();
+    }
+
+    @Test
+    public void redo() {
+        Hoard h = new Hoard(cloud_actions);
+        HPath salmon = new HPath("FineDining↘Caviar↘Salmon");
+        try {
+            h.playAction(new Action(Action.EDIT, salmon, 10 * HOUR, "Pink"), true);
+            h.playAction(new Action(Action.EDIT, salmon, 11 * HOUR, "Red"), true);
+            h.undo();
+            h.undo();
+            assertEquals("Orange Eggs", ((Leaf) h.getNode(salmon)).getData());
+            assertEquals(2, h.canRedo());
+            h.redo();
+            assertEquals("Pink", ((Leaf) h.getNode(salmon)).getData());
+            assertEquals(1, h.canUndo());
+            assertEquals(1, h.canRedo());
+            // A new action forgets what can be redone
+            h.playAction(new Action(Action.EDIT, salmon, 12 * HOUR, "Grey"), true);
+            assertEquals(0, h.canRedo());
+        } catch (Hoard.ConflictException ce) {
+            fail(ce.getMessage());
+        }
+    }
+
+    @Test
+    public void transaction() {
+        Hoard h = new Hoard(cloud_actions);
+        final int[] single = {0};
+        final List<Action> batch = new ArrayList<>();
+        h.addChangeListener(new Hoard.ChangeListener() {
+            @Override
+            public void actionPlayed(Action act, HoardNode parent, HoardNode node, HoardNode newParent) {
+                single[0]++;
+            }
+
+            @Override
+            public void actionsPlayed(List<Action> acts) {
+                batch.addAll(acts);
+            }
+        });
+        h.beginTransaction();
+        try {
+            h.playAction(new Action(Action.NEW, new HPath("Import"), 10 * HOUR), true);
+            h.beginTransaction();
+            for (int i = 0; i < 100; i++)
+                h.playAction(new Action(Action.NEW, new HPath("Import↘" + i), 10 * HOUR, "v" + i), true);
+            h.commitTransaction();
+            h.playAction(new Action(Action.MOVE, new HPath("FineDining↘Truffles"), 10 * HOUR, "Import"), true);
+            assertEquals(0, batch.size());
+        } catch (Hoard.ConflictException ce) {
+            fail(ce.getMessage());
+        }
+        h.commitTransaction();
+        assertEquals(0, single[0]);
+        assertEquals(102, batch.size());
+        assertEquals(1, h.canUndo());
+
+        batch.clear();
+        try {
+            h.undo();
+            assertEquals(102, batch.size());
+            assertNull(h.getNode(new HPath("Import")));
+            assertNotNull(h.getNode(new HPath("FineDining↘Truffles")));
+            h.redo();
+            assertEquals(100, ((Fork) h.getNode(new HPath("Import"))).getChildren().size() - 1);
+            assertNotNull(h.getNode(new HPath("Import↘Truffles")));
+        } catch (Hoard.ConflictException ce) {
+            fail(ce.getMessage());
+        }
+        assertEquals(0, single[0]);
+    }
+
+    @Test
+    public void batch_listener() {
+        Hoard h = new Hoard(cloud_actions);
+        final List<ChangeSet> sets = new ArrayList<>();
+        h.addBatchListener(sets::add);
+        HoardNode fineDining = h.getNode(new HPath("FineDining"));
+        HoardNode salmon = h.getNode(new HPath("FineDining↘Caviar↘Salmon"));
+        HoardNode truffles = h.getNode(new HPath("FineDining↘Truffles"));
+        h.playBatch(Arrays.asList(
+                new Action(Action.NEW, new HPath("A"), 10 * HOUR),
+                new Action(Action.NEW, new HPath("A↘x"), 10 * HOUR, "1"),
+                new Action(Action.EDIT, new HPath("A↘x"), 11 * HOUR, "2"),
+                new Action(Action.NEW, new HPath("FineDining↘Tmp"), 11 * HOUR, "t"),
+                new Action(Action.DELETE, new HPath("FineDining↘Tmp"), 12 * HOUR),
+                new Action(Action.EDIT, new HPath("FineDining↘Caviar↘Salmon"), 12 * HOUR, "Pink"),
+                new Action(Action.EDIT, new HPath("FineDining↘Caviar↘Salmon"), 13 * HOUR, "Red"),
+                new Action(Action.MOVE, new HPath("FineDining↘Truffles"), 13 * HOUR, "A")), false);
+        assertEquals(1, sets.size());
+        ChangeSet cs = sets.get(0);
+        assertEquals(8, cs.getActionCount());
+        assertEquals(Arrays.asList(h.getNode(new HPath("A"))), cs.getAdded());
+        // Truffles was moved into a folder that was added
+        assertEquals(Arrays.asList(truffles), cs.getRemoved());
+        assertEquals(fineDining, cs.getRemovedFrom(truffles));
+        assertEquals(0, cs.getMoved().size());
+        assertEquals(Arrays.asList(h.getRoot(), fineDining, salmon), cs.getChanged());
+
+        // Cadence
+        sets.clear();
+        h.setBatchSize(10);
+        List<Action> acts = new ArrayList<>();
+        for (int i = 0; i < 25; i++)
+            acts.add(new Action(Action.NEW, new HPath("A↘" + i), 14 * HOUR, "v" + i));
+        h.playBatch(acts, false);
+        assertEquals(3, sets.size());
+        assertEquals(5, sets.get(2).getAdded().size());
+
+        // A transaction is one batch, whatever its size
+        sets.clear();
+        h.beginTransaction();
+        try {
+            for (int i = 0; i < 25; i++)
+                h.playAction(new Action(Action.DELETE, new HPath("A↘" + i), 15 * HOUR), true);
+            h.playAction(new Action(Action.MOVE, new HPath("A↘x"), 15 * HOUR, "FineDining"), true);
+        } catch (Hoard.ConflictException ce) {
+            fail(ce.getMessage());
+        }
+        h.commitTransaction();
+        assertEquals(1, sets.size());
+        assertEquals(25, sets.get(0).getRemoved().size());
+        assertEquals(Arrays.asList(h.getNode(new HPath("FineDining↘x"))), sets.get(0).getMoved());
+
+        // Undo is one batch, and a node created and deleted in a batch is not reported
+        h.setBatchSize(0);
+        sets.clear();
+        try {
+            h.undo();
+            assertEquals(1, sets.size());
+            assertEquals(25, sets.get(0).getAdded().size());
+            h.playBatch(Arrays.asList(
+                    new Action(Action.NEW, new HPath("A↘y"), 16 * HOUR, "y"),
+                    new Action(Action.DELETE, new HPath("A↘y"), 16 * HOUR)), false);
+        } catch (Hoard.ConflictException ce) {
+            fail(ce.getMessage());
+        }
+        assertEquals(2, sets.size());
+        assertEquals(Arrays.asList(h.getNode(new HPath("A"))), sets.get(1).getChanged());
+    }
+
+    @Test
+    public void hash() {
+        Hoard a = new Hoard(client_actions);
+        Hoard b = new Hoard(client_actions);
+        // Root times differ, but don't affect the hash
+        assertEquals(a.getHash(), b.getHash());
+        final List<Action> acts = new ArrayList<>();
+        HoardNode.DiffReporter differ = (act, na, nb) -> acts.add(act);
+        a.diff(b, differ);
+        assertEquals(0, acts.size());
+
+        long start = a.getHash();
+        HoardNode caviar = a.getNode(new HPath("FineDining↘Caviar"));
+        long caviarHash = caviar.getHash();
+        try {
+            a.playAction(new Action(Action.EDIT, new HPath("FineDining↘Truffles"), "Black"), true);
+        } catch (Hoard.ConflictException ce) {
+            fail(ce.getMessage());
+        }
+        assertNotEquals(start, a.getHash());
+        // Sibling subtree is unaffected
+        assertEquals(caviarHash, caviar.getHash());
+        a.diff(b, differ);
+        assertEquals(1, acts.size());
+        // Changes needed to turn a back into b
+        assertEquals(new Action(Action.EDIT, new HPath("FineDining↘Truffles"), "Fungi"), acts.get(0));
+
+        // Alarms and constraints are part of the content
+        long edited = a.getHash();
+        a.getNode(new HPath("FineDining↘Truffles")).setAlarm(new Alarm(1000, 0));
+        assertNotEquals(edited, a.getHash());
+        long alarmed = a.getHash();
+        ((Leaf) a.getNode(new HPath("FineDining↘Truffles"))).setConstraints(new Constraints(5, "a-z"));
+        assertNotEquals(alarmed, a.getHash());
+
+        // Undo everything, and the hoards are the same again
+        a.getNode(new HPath("FineDining↘Truffles")).setAlarm(null);
+        ((Leaf) a.getNode(new HPath("FineDining↘Truffles"))).setConstraints(null);
+        try {
+            a.undo();
+        } catch (Hoard.ConflictException ce) {
+            fail(ce.getMessage());
+        }
+        assertEquals(start, a.getHash());
+    }
+
     @Test
     public void CONSTRAIN() {
         Hoard h = new Hoard(client_actions);
@@ -594,7 +1164,7 @@ public class HoardUnitTest {
         assertFalse(fungi.getConstraints().isAcceptable(""));
         assertFalse(fungi.getConstraints().isAcceptable(null));
         assertFalse(fungi.getConstraints().isAcceptable("abcdxfABCDEF0123456789"));
-        assertEquals("[N: Truffles @01-Jan-1970 01:00:00 Fungi, X:  @01-Jan-1970 01:00:00 {\"size\":10,\"chars\":\"a-fA-F0-9\"}]", fungi.actionsToCreate().toString());
+        assertEquals("[N: Truffles @01-Jan-1970 01:00:00 Fungi, X: Truffles @01-Jan-1970 01:00:00 {\"size\":10,\"chars\":\"a-fA-F0-9\"}]", fungi.actionsToCreate().toString());
         try {
             h.undo();
         } catch (Hoard.ConflictException ce) {
@@ -712,6 +1282,45 @@ public class HoardUnitTest {
         assertNotNull(rung.get("FineDining↘Caviar↘Salmon"));
     }
 
+    @Test
+    public void alarm_index() {
+        Hoard h = new Hoard(cloud_actions);
+        assertEquals(0, h.getNextAlarmDue());
+        final List<String> rung = new ArrayList<>();
+        Alarm.Ringer ringer = (path, when) -> rung.add(path + "@" + when.getTime() / HOUR);
+        try {
+            h.playAction(new Action(Action.SET_ALARM, new HPath("FineDining↘Caviar↘Salmon"), "{\"due\":" + 30 * HOUR + ", \"repeat\":0}"), true);
+            h.playAction(new Action(Action.SET_ALARM, new HPath("FineDining↘Caviar"), "{\"due\":" + 20 * HOUR + ", \"repeat\":0}"), true);
+            h.playAction(new Action(Action.SET_ALARM, new HPath("FineDining↘Truffles"), "{\"due\":" + 10 * HOUR + ", \"repeat\":" + 15 * HOUR + "}"), true);
+            assertEquals(10 * HOUR, h.getNextAlarmDue());
+
+            // Deleting a folder removes the alarms in it
+            h.playAction(new Action(Action.DELETE, new HPath("FineDining↘Caviar"), 1 * HOUR), true);
+            h.checkAlarms(5 * HOUR, ringer);
+            assertEquals(0, rung.size());
+            h.checkAlarms(40 * HOUR, ringer);
+            assertEquals(Arrays.asList("FineDining↘Truffles@10"), rung);
+            assertEquals(55 * HOUR, h.getNextAlarmDue());
+
+            // Undoing the delete puts them back
+            h.undo();
+            assertEquals(20 * HOUR, h.getNextAlarmDue());
+
+            // Moved and renamed nodes ring at their new paths, in the order they are due
+            h.playAction(new Action(Action.RENAME, new HPath("FineDining↘Caviar"), 2 * HOUR, "Roe"), true);
+            h.playAction(new Action(Action.MOVE, new HPath("FineDining↘Roe↘Salmon"), 2 * HOUR, "FineDining"), true);
+            rung.clear();
+            h.checkAlarms(60 * HOUR, ringer);
+            assertEquals(Arrays.asList("FineDining↘Roe@20", "FineDining↘Salmon@30", "FineDining↘Truffles@55"), rung);
+            assertEquals(75 * HOUR, h.getNextAlarmDue());
+
+            h.playAction(new Action(Action.CANCEL_ALARM, new HPath("FineDining↘Truffles"), 3 * HOUR), true);
+            assertEquals(0, h.getNextAlarmDue());
+        } catch (Hoard.ConflictException ce) {
+            fail(ce.getMessage());
+        }
+    }
+
     @Test
     public void should_call_change_listener() {
         Hoard h = new Hoard();
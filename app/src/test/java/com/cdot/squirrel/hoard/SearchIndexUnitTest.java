@@ -0,0 +1,99 @@
+package com.cdot.squirrel.hoard;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class SearchIndexUnitTest {
+
+    private static Hoard hoard() {
+        Hoard h = new Hoard();
+        h.playActions(Arrays.asList(
+                new Action(Action.NEW, HPath.valueOf("Banks"), 1),
+                new Action(Action.NEW, HPath.valueOf("Banks↘First National"), 2),
+                new Action(Action.NEW, HPath.valueOf("Banks↘First National↘Password"), 3, "Fish4Dinner"),
+                new Action(Action.NEW, HPath.valueOf("Banks↘Nationwide"), 4, "pin 1234"),
+                new Action(Action.NEW, HPath.valueOf("Shops"), 5),
+                new Action(Action.NEW, HPath.valueOf("Shops↘www.fishmonger.com"), 6, "first")), false);
+        return h;
+    }
+
+    // Paths found for a query, sorted
+    private static List<String> find(SearchIndex index, String query) {
+        List<String> found = new ArrayList<>();
+        for (HPath p : index.search(query, 100))
+            found.add(p.toString());
+        Collections.sort(found);
+        return found;
+    }
+
+    @Test
+    public void words() {
+        assertEquals(Arrays.asList("www", "fishmonger", "com"), SearchIndex.words("www.fishmonger.com"));
+        assertEquals(Arrays.asList("a", "b"), SearchIndex.words(" A-b  a "));
+        assertEquals(0, SearchIndex.words(null).size());
+    }
+
+    @Test
+    public void search() {
+        Hoard h = hoard();
+        SearchIndex index = new SearchIndex(h, false);
+        assertEquals(Arrays.asList("Banks↘First National", "Banks↘Nationwide"), find(index, "nation"));
+        assertEquals(Arrays.asList("Banks↘First National"), find(index, "NAT fir"));
+        assertEquals(Arrays.asList("Shops↘www.fishmonger.com"), find(index, "fish"));
+        assertEquals(0, find(index, "").size());
+        assertEquals(0, find(index, "dinner").size());
+        assertEquals(1, index.search("nation", 1).size());
+
+        // Data is only searched if asked for
+        index = new SearchIndex(h, true);
+        assertEquals(Arrays.asList("Banks↘First National", "Banks↘First National↘Password",
+                "Shops↘www.fishmonger.com"), find(index, "fi"));
+    }
+
+    @Test
+    public void kept_up_to_date() {
+        Hoard h = hoard();
+        SearchIndex index = new SearchIndex(h, true);
+        try {
+            h.playAction(new Action(Action.RENAME, HPath.valueOf("Banks↘Nationwide"), 10, "Building Society"), true);
+            assertEquals(Arrays.asList("Banks↘First National"), find(index, "nation"));
+            assertEquals(Arrays.asList("Banks↘Building Society"), find(index, "soc"));
+
+            h.playAction(new Action(Action.MOVE, HPath.valueOf("Banks↘First National"), 11, "Shops"), true);
+            assertEquals(Arrays.asList("Shops↘First National↘Password"), find(index, "pass"));
+
+            h.playAction(new Action(Action.EDIT, HPath.valueOf("Shops↘First National↘Password"), 12, "Chips"), true);
+            assertEquals(0, find(index, "dinner").size());
+            assertEquals(Arrays.asList("Shops↘First National↘Password"), find(index, "chip"));
+
+            h.playAction(new Action(Action.DELETE, HPath.valueOf("Shops"), 13), true);
+            assertEquals(0, find(index, "pass").size());
+            assertEquals(0, find(index, "fish").size());
+
+            h.undo();
+            assertEquals(Arrays.asList("Shops↘First National↘Password"), find(index, "pass"));
+
+            // INSERT replaces the node
+            h.playAction(new Action(Action.INSERT, HPath.valueOf("Shops↘First National"), 14, "{\"time\":14,\"data\":\"x\"}"), true);
+            assertEquals(0, find(index, "pass").size());
+            assertEquals(Arrays.asList("Shops↘First National"), find(index, "first nat"));
+        } catch (Hoard.ConflictException ce) {
+            fail(ce.getMessage());
+        }
+
+        index.close();
+        try {
+            h.playAction(new Action(Action.NEW, HPath.valueOf("Banks↘Credit Union"), 15), true);
+        } catch (Hoard.ConflictException ce) {
+            fail(ce.getMessage());
+        }
+        assertEquals(0, find(index, "union").size());
+    }
+}
@@ -0,0 +1,80 @@
+package com.cdot.squirrel.crypto;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single block cipher, key expansion and password key derivation, reference against table-driven
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BlockBenchmark {
+
+    @Param({"128", "192", "256"})
+    int nBits;
+
+    private byte[] mKey;
+    private byte[] mBlock;
+    private byte[] mOut;
+    private byte[][] mReferenceSchedule;
+    private int[] mTableSchedule;
+    private String mPassword;
+    private Aes mReference;
+    private Aes mTable;
+
+    @Setup
+    public void setup() {
+        Random r = new Random(nBits);
+        mKey = new byte[nBits / 8];
+        r.nextBytes(mKey);
+        mBlock = new byte[Aes.BLOCK_SIZE];
+        r.nextBytes(mBlock);
+        mOut = new byte[Aes.BLOCK_SIZE];
+        mReferenceSchedule = Aes.keyExpansion(mKey);
+        mTableSchedule = AesEngine.keySchedule(mKey);
+        mPassword = "North △ West ◁ South ▽ East ▷";
+        mReference = new AES_Reference();
+        mTable = new AES_Table();
+    }
+
+    @Benchmark
+    public byte[] cipher_reference() {
+        return Aes.cipher(mBlock, mReferenceSchedule);
+    }
+
+    @Benchmark
+    public byte[] cipher_table() {
+        AesEngine.encryptBlock(mTableSchedule, mBlock, 0, mOut, 0);
+        return mOut;
+    }
+
+    @Benchmark
+    public byte[][] keyExpansion_reference() {
+        return Aes.keyExpansion(mKey);
+    }
+
+    @Benchmark
+    public int[] keyExpansion_table() {
+        return AesEngine.keySchedule(mKey);
+    }
+
+    @Benchmark
+    public byte[] makeKey_reference() {
+        return mReference.makeKey(mPassword, nBits);
+    }
+
+    @Benchmark
+    public byte[] makeKey_table() {
+        return mTable.makeKey(mPassword, nBits);
+    }
+}
@@ -0,0 +1,104 @@
+package com.cdot.squirrel.crypto;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full password based encrypt/decrypt of a payload, for each implementation. The cold
+ * benchmarks cycle through more passwords than the key cache holds, so every implementation
+ * derives its key each time, as AES_Old always does. The warm benchmarks use one password,
+ * so all but AES_Old find it in the key cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CtrBenchmark {
+
+    @Param({"Reference", "Old", "Java", "Table"})
+    String impl;
+
+    @Param({"1024", "65536", "16777216"})
+    int size;
+
+    @Param({"128", "192", "256"})
+    int nBits;
+
+    private static final String PASSWORD = "!£$%%&*)*_(_+)()*&}{:@<>?[];',./";
+
+    // Number of passwords cycled through by the cold benchmarks
+    private static final int PASSWORDS = 4 * Aes.MAX_CACHED_KEYS;
+
+    private Aes mAes;
+    private byte[] mPlaintext;
+    private byte[] mCiphertext;
+    private String[] mPasswords;
+    // mPlaintext encrypted with each of mPasswords
+    private byte[][] mCiphertexts;
+    private int mNext = 0;
+
+    static Aes makeAes(String impl) {
+        switch (impl) {
+            case "Reference":
+                return new AES_Reference();
+            case "Old":
+                return new AES_Old();
+            case "Java":
+                return new AES_Java();
+            case "Table":
+                return new AES_Table();
+        }
+        throw new Error("Unknown implementation " + impl);
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mAes = makeAes(impl);
+        mPlaintext = new byte[size];
+        new Random(size).nextBytes(mPlaintext);
+        mCiphertext = mAes.encrypt(mPlaintext, PASSWORD, nBits);
+        mPasswords = new String[PASSWORDS];
+        mCiphertexts = new byte[PASSWORDS][];
+        for (int i = 0; i < PASSWORDS; i++) {
+            mPasswords[i] = PASSWORD + i;
+            mCiphertexts[i] = mAes.encrypt(mPlaintext, mPasswords[i], nBits);
+        }
+    }
+
+    // Index of the next password to use, least recently used, so never in the key cache
+    private int next() {
+        int i = mNext;
+        mNext = (i + 1) % PASSWORDS;
+        return i;
+    }
+
+    @Benchmark
+    public byte[] encrypt() {
+        return mAes.encrypt(mPlaintext, mPasswords[next()], nBits);
+    }
+
+    @Benchmark
+    public byte[] decrypt() {
+        int i = next();
+        return mAes.decrypt(mCiphertexts[i], mPasswords[i], nBits);
+    }
+
+    @Benchmark
+    public byte[] encryptWarm() {
+        return mAes.encrypt(mPlaintext, PASSWORD, nBits);
+    }
+
+    @Benchmark
+    public byte[] decryptWarm() {
+        return mAes.decrypt(mCiphertext, PASSWORD, nBits);
+    }
+}
@@ -0,0 +1,135 @@
+package com.cdot.squirrel.hoard;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hoard operations. Subclasses provide the action log in their setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public abstract class HoardBenchmark {
+
+    // Log of actions that builds the hoard
+    List<Action> mLog;
+    // mLog in the form read by Hoard(JSONObject)
+    JSONObject mLogJSON;
+    // mLogJSON as text
+    String mLogText;
+    // mLog written by ActionWriter
+    byte[] mLogBinary;
+    // Snapshot of the tree built from mLog, in the form read by Hoard(JSONObject)
+    JSONObject mSnapshotJSON;
+    // Hoard built from mLog
+    Hoard mHoard;
+    // mHoard with some leaves changed
+    Hoard mOther;
+
+    /**
+     * Fill in the other fields from mLog
+     */
+    void prepare(HoardGenerator gen) {
+        mLogJSON = HoardGenerator.toJSON(mLog);
+        mLogText = mLogJSON.toString();
+        try {
+            mLogBinary = writeBinary();
+        } catch (IOException ioe) {
+            throw new Error(ioe);
+        }
+        mHoard = new Hoard(mLog);
+        Hoard h = new Hoard(mLog);
+        h.compact();
+        mSnapshotJSON = h.toJSON();
+        mOther = gen.perturb(mLog, 0.01);
+    }
+
+    @Benchmark
+    public Hoard playActions() {
+        return new Hoard(mLog);
+    }
+
+    @Benchmark
+    public Hoard fromJSON() {
+        return new Hoard(mLogJSON);
+    }
+
+    @Benchmark
+    public Hoard fromText() throws JSONException {
+        return new Hoard(new JSONObject(mLogText));
+    }
+
+    @Benchmark
+    public Hoard fromReader() throws IOException {
+        return new Hoard(new StringReader(mLogText));
+    }
+
+    @Benchmark
+    public Hoard fromSnapshot() {
+        return new Hoard(mSnapshotJSON);
+    }
+
+    @Benchmark
+    public List<Action> readJSON() throws JSONException {
+        JSONArray arr = new JSONObject(mLogText).getJSONArray("actions");
+        List<Action> actions = new ArrayList<>(arr.length());
+        for (int i = 0; i < arr.length(); i++)
+            actions.add(new Action(arr.getJSONObject(i)));
+        return actions;
+    }
+
+    @Benchmark
+    public List<Action> readBinary() throws IOException {
+        return new ActionReader(new ByteArrayInputStream(mLogBinary)).readAll();
+    }
+
+    @Benchmark
+    public String writeJSON() {
+        return HoardGenerator.toJSON(mLog).toString();
+    }
+
+    @Benchmark
+    public byte[] writeBinary() throws IOException {
+        ByteArrayOutputStream ouch = new ByteArrayOutputStream();
+        ActionWriter w = new ActionWriter(ouch);
+        w.write(mLog);
+        w.close();
+        return ouch.toByteArray();
+    }
+
+    @Benchmark
+    public List<Action> compact() {
+        return ActionCompactor.compact(mLog);
+    }
+
+    @Benchmark
+    public List<Action> actionsToCreate() {
+        return mHoard.actionsToCreate();
+    }
+
+    @Benchmark
+    public JSONObject toJSON() {
+        return mHoard.getRoot().toJSON();
+    }
+
+    @Benchmark
+    public void diff(Blackhole bh) {
+        mHoard.diff(mOther, (act, a, b) -> bh.consume(act));
+    }
+}
@@ -0,0 +1,192 @@
+package com.cdot.squirrel.hoard;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generators for synthetic hoards and action logs, for benchmarking
+ */
+class HoardGenerator {
+    private static final long HOUR = 60 * 60 * 1000;
+    private static final String CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+
+    private final Random mRandom;
+    private final int mLeafSize;
+    private long mTime = 1426664866307L;
+
+    /**
+     * @param seed     random seed, so runs are repeatable
+     * @param leafSize number of characters in each leaf value
+     */
+    HoardGenerator(long seed, int leafSize) {
+        mRandom = new Random(seed);
+        mLeafSize = leafSize;
+    }
+
+    private long nextTime() {
+        mTime += 1 + mRandom.nextInt((int) HOUR);
+        return mTime;
+    }
+
+    private String value() {
+        StringBuilder sb = new StringBuilder(mLeafSize);
+        for (int i = 0; i < mLeafSize; i++)
+            sb.append(CHARS.charAt(mRandom.nextInt(CHARS.length())));
+        return sb.toString();
+    }
+
+    /**
+     * Generate the actions to create a tree. Every folder has fanOut leaves and, above the
+     * bottom level, fanOut sub-folders.
+     *
+     * @param depth  number of levels of folders
+     * @param fanOut number of folders and leaves in each folder
+     * @param leaves receives the paths of all leaves created
+     * @return the actions to create the tree
+     */
+    List<Action> tree(int depth, int fanOut, List<HPath> leaves) {
+        List<Action> actions = new ArrayList<>();
+        tree(HPath.ROOT, depth, fanOut, actions, leaves);
+        return actions;
+    }
+
+    private void tree(HPath path, int depth, int fanOut, List<Action> actions, List<HPath> leaves) {
+        for (int i = 0; i < fanOut; i++) {
+            HPath leaf = path.with("Leaf" + i);
+            actions.add(new Action(Action.NEW, leaf, nextTime(), value()));
+            leaves.add(leaf);
+        }
+        if (depth <= 1)
+            return;
+        for (int i = 0; i < fanOut; i++) {
+            HPath fork = path.with("Folder" + i);
+            actions.add(new Action(Action.NEW, fork, nextTime()));
+            tree(fork, depth - 1, fanOut, actions, leaves);
+        }
+    }
+
+    /**
+     * Generate an action log: the actions to create a tree, followed by a history of edits,
+     * alarms, and short-lived values, up to the requested length. Every action in the log
+     * plays without conflict.
+     *
+     * @param depth  number of levels of folders
+     * @param fanOut number of folders and leaves in each folder
+     * @param length total number of actions in the log; at least the size of the tree
+     * @return the action log
+     */
+    List<Action> log(int depth, int fanOut, int length) {
+        List<HPath> leaves = new ArrayList<>();
+        List<Action> actions = tree(depth, fanOut, leaves);
+        int temp = 0;
+        while (actions.size() < length) {
+            HPath leaf = leaves.get(mRandom.nextInt(leaves.size()));
+            int what = mRandom.nextInt(10);
+            if (what < 7)
+                actions.add(new Action(Action.EDIT, leaf, nextTime(), value()));
+            else if (what < 8)
+                actions.add(new Action(Action.SET_ALARM, leaf, nextTime(),
+                        new Alarm(mTime + 30 * 24 * HOUR, 0).toJSON().toString()));
+            else {
+                // Value added then deleted again
+                HPath t = leaf.parent().with("Temp" + temp++);
+                actions.add(new Action(Action.NEW, t, nextTime(), value()));
+                actions.add(new Action(Action.DELETE, t, nextTime()));
+            }
+        }
+        return actions;
+    }
+
+    /**
+     * Build a hoard from an action log, then edit a proportion of its leaves
+     *
+     * @param log      actions to build the hoard
+     * @param fraction fraction of leaves to change
+     * @return the modified hoard
+     */
+    Hoard perturb(List<Action> log, double fraction) {
+        Hoard copy = new Hoard(log);
+        List<Action> edits = new ArrayList<>();
+        perturb(copy.getRoot(), HPath.ROOT, fraction, edits);
+        copy.playActions(edits, false);
+        return copy;
+    }
+
+    private void perturb(Fork f, HPath path, double fraction, List<Action> edits) {
+        for (HoardNode n : f.getChildren().values()) {
+            HPath p = path.with(n.getName());
+            if (n instanceof Fork)
+                perturb((Fork) n, p, fraction, edits);
+            else if (mRandom.nextDouble() < fraction)
+                edits.add(new Action(Action.EDIT, p, nextTime(), value()));
+        }
+    }
+
+    /**
+     * Wrap an action log in the JSON form read by Hoard(JSONObject)
+     */
+    static JSONObject toJSON(List<Action> actions) {
+        JSONArray arr = new JSONArray();
+        for (Action act : actions)
+            arr.put(act.toJSON());
+        JSONObject job = new JSONObject();
+        try {
+            job.put("actions", arr);
+        } catch (JSONException je) {
+            throw new Error("JSON exception " + je);
+        }
+        return job;
+    }
+
+    /**
+     * Convert legacy "length;chars" constraints in a saved tree to the current format
+     */
+    private static void upgrade(JSONObject node) throws JSONException {
+        Object data = node.get("data");
+        if (data instanceof JSONObject) {
+            JSONObject kids = (JSONObject) data;
+            for (String name : kids.keySet())
+                upgrade(kids.getJSONObject(name));
+        } else if (node.opt("constraints") instanceof String) {
+            String[] bits = node.getString("constraints").split(";", 2);
+            node.put("constraints", new Constraints(Integer.parseInt(bits[0]), bits[1]).toJSON());
+        }
+    }
+
+    /**
+     * Load the action log to create the tree saved in a fixture, such as large.json
+     *
+     * @param name resource name
+     * @return the actions to create the tree
+     */
+    static List<Action> fixture(String name) {
+        InputStream in = HoardGenerator.class.getClassLoader().getResourceAsStream(name);
+        if (in == null)
+            throw new Error("Could not load " + name);
+        ByteArrayOutputStream ouch = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        try {
+            while ((n = in.read(buf)) > 0)
+                ouch.write(buf, 0, n);
+            JSONObject job = new JSONObject(ouch.toString("UTF-8"));
+            // Fixtures saved by older versions have the root time inside the root data
+            if (!job.has("time"))
+                job.put("time", job.getJSONObject("data").remove("time"));
+            upgrade(job);
+            Hoard h = new Hoard();
+            h.getRoot().fromJSON(job);
+            return h.actionsToCreate();
+        } catch (IOException | JSONException e) {
+            throw new Error("Could not parse " + name + " " + e);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.cdot.squirrel.hoard;
+
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * Hoard operations on the large.json test fixture
+ */
+public class LargeHoardBenchmark extends HoardBenchmark {
+
+    @Setup
+    public void setup() {
+        mLog = HoardGenerator.fixture("large.json");
+        prepare(new HoardGenerator(0, 30));
+    }
+}
@@ -0,0 +1,30 @@
+package com.cdot.squirrel.hoard;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * Hoard operations on generated hoards. The log is the tree creation followed by edits
+ * etc. up to logLength actions.
+ */
+public class SyntheticHoardBenchmark extends HoardBenchmark {
+
+    @Param({"3"})
+    int depth;
+
+    @Param({"10"})
+    int fanOut;
+
+    @Param({"30"})
+    int leafSize;
+
+    @Param({"10000", "100000", "1000000"})
+    int logLength;
+
+    @Setup
+    public void setup() {
+        HoardGenerator gen = new HoardGenerator(depth * 1000 + fanOut, leafSize);
+        mLog = gen.log(depth, fanOut, logLength);
+        prepare(gen);
+    }
+}
@@ -0,0 +1,15 @@
+package android.os;
+
+/**
+ * JVM stand-in for the Android class. SDK_INT is 0, as it is in the mockable android.jar
+ * used for unit tests, so code takes its plain Java paths.
+ */
+public class Build {
+    public static class VERSION {
+        public static final int SDK_INT = 0;
+    }
+
+    public static class VERSION_CODES {
+        public static final int O = 26;
+    }
+}
@@ -0,0 +1,16 @@
+package android.util;
+
+/**
+ * JVM stand-in for the Android class. Never called, because Build.VERSION.SDK_INT is 0.
+ */
+public class Base64 {
+    public static final int DEFAULT = 0;
+
+    public static String encodeToString(byte[] input, int flags) {
+        throw new UnsupportedOperationException();
+    }
+
+    public static byte[] decode(String str, int flags) {
+        throw new UnsupportedOperationException();
+    }
+}